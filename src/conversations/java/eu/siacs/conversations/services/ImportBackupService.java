@@ -10,6 +10,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
@@ -45,7 +46,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipException;
 
@@ -53,10 +56,16 @@ import javax.crypto.BadPaddingException;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
+import eu.siacs.conversations.crypto.axolotl.SQLiteAxolotlStore;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.BackupFrames;
+import eu.siacs.conversations.utils.BackupRows;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -64,11 +73,22 @@ public class ImportBackupService extends Service {
 
     private static final int NOTIFICATION_ID = 21;
     private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static final List<String> TABLES = Arrays.asList(
+            Account.TABLENAME,
+            Conversation.TABLENAME,
+            Message.TABLENAME,
+            SQLiteAxolotlStore.PREKEY_TABLENAME,
+            SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
+            SQLiteAxolotlStore.SESSION_TABLENAME,
+            SQLiteAxolotlStore.IDENTITIES_TABLENAME
+    );
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_]+");
     private final ImportBackupServiceBinder binder = new ImportBackupServiceBinder();
     private final SerialSingleThreadExecutor executor = new SerialSingleThreadExecutor(getClass().getSimpleName());
     private final Set<OnBackupProcessed> mOnBackupProcessedListeners = Collections.newSetFromMap(new WeakHashMap<>());
     private DatabaseBackend mDatabaseBackend;
     private NotificationManager notificationManager;
+    private int lastNotifiedProgress = -1;
 
     private static int count(String input, char c) {
         int count = 0;
@@ -178,6 +198,10 @@ public class ImportBackupService extends Service {
             max = 100;
             progress = (int) (current * 100 / total);
         }
+        if (progress == lastNotifiedProgress) {
+            return;
+        }
+        lastNotifiedProgress = progress;
         final NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
         try {
             notificationManager.notify(NOTIFICATION_ID, createImportBackupNotification(max, progress));
@@ -197,7 +221,9 @@ public class ImportBackupService extends Service {
     private boolean importBackup(final Uri uri, final String password) {
         Log.d(Config.LOGTAG, "importing backup from " + uri);
         final Stopwatch stopwatch = Stopwatch.createStarted();
+        lastNotifiedProgress = -1;
         try {
+            mDatabaseBackend.flushMessages();
             final SQLiteDatabase db = mDatabaseBackend.getWritableDatabase();
             final InputStream inputStream;
             final String path = uri.getPath();
@@ -241,36 +267,17 @@ public class ImportBackupService extends Service {
 
             final byte[] key = ExportBackupService.getKey(password, backupFileHeader.getSalt());
 
-            final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            cipher.init(false, new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
-            final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
-
-            final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
-            db.beginTransaction();
-            String line;
-            StringBuilder multiLineQuery = null;
-            while ((line = reader.readLine()) != null) {
-                int count = count(line, '\'');
-                if (multiLineQuery != null) {
-                    multiLineQuery.append('\n');
-                    multiLineQuery.append(line);
-                    if (count % 2 == 1) {
-                        db.execSQL(multiLineQuery.toString());
-                        multiLineQuery = null;
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    }
-                } else {
-                    if (count % 2 == 0) {
-                        db.execSQL(line);
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    } else {
-                        multiLineQuery = new StringBuilder(line);
-                    }
-                }
+            final long rows;
+            if (backupFileHeader.getVersion() == BackupFileHeader.VERSION_FRAMES) {
+                rows = importRows(db, new BackupFrames.FrameInputStream(countingInputStream, key, backupFileHeader.getIv()), fileSize, countingInputStream);
+            } else {
+                final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+                cipher.init(false, new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
+                final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
+                rows = importStatements(db, new GZIPInputStream(cipherInputStream), fileSize, countingInputStream);
             }
-            db.setTransactionSuccessful();
-            db.endTransaction();
+            final long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            Log.d(Config.LOGTAG, "restored " + rows + " rows in " + millis + "ms (" + (millis == 0 ? rows : rows * 1000 / millis) + " rows/s)");
             final Jid jid = backupFileHeader.getJid();
             final Cursor countCursor = db.rawQuery("select count(messages.uuid) from messages join conversations on conversations.uuid=messages.conversationUuid join accounts on conversations.accountUuid=accounts.uuid where accounts.username=? and accounts.server=?", new String[]{jid.getEscapedLocal(), jid.getDomain().toEscapedString()});
             countCursor.moveToFirst();
@@ -301,6 +308,105 @@ public class ImportBackupService extends Service {
         }
     }
 
+    /**
+     * Restores a version 1 backup, which consists of one SQL statement per line. Statements
+     * containing line breaks span multiple lines; they end on the line that closes the last quote.
+     */
+    private long importStatements(final SQLiteDatabase db, final InputStream inputStream, final long fileSize, final CountingInputStream countingInputStream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, Charsets.UTF_8));
+        long rows = 0;
+        db.beginTransaction();
+        try {
+            mDatabaseBackend.beginBulkInsert(db);
+            String line;
+            StringBuilder multiLineQuery = null;
+            while ((line = reader.readLine()) != null) {
+                int count = count(line, '\'');
+                if (multiLineQuery != null) {
+                    multiLineQuery.append('\n');
+                    multiLineQuery.append(line);
+                    if (count % 2 == 1) {
+                        db.execSQL(multiLineQuery.toString());
+                        multiLineQuery = null;
+                        ++rows;
+                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
+                    }
+                } else {
+                    if (count % 2 == 0) {
+                        db.execSQL(line);
+                        ++rows;
+                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
+                    } else {
+                        multiLineQuery = new StringBuilder(line);
+                    }
+                }
+            }
+            mDatabaseBackend.endBulkInsert(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Restores a version 2 backup. One INSERT statement is compiled per table and every row is
+     * bound to it directly; table and column names come from the file and are therefore checked
+     * against a whitelist before they end up in SQL.
+     */
+    private long importRows(final SQLiteDatabase db, final InputStream inputStream, final long fileSize, final CountingInputStream countingInputStream) throws IOException {
+        final BackupRows.Reader reader = new BackupRows.Reader(inputStream);
+        SQLiteStatement statement = null;
+        String table = null;
+        long rows = 0;
+        db.beginTransaction();
+        try {
+            mDatabaseBackend.beginBulkInsert(db);
+            while (reader.next()) {
+                if (statement == null || !reader.getTable().equals(table)) {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    table = reader.getTable();
+                    statement = db.compileStatement(insertStatement(table, reader.getColumns()));
+                }
+                reader.bind(statement);
+                statement.executeInsert();
+                ++rows;
+                updateImportBackupNotification(fileSize, countingInputStream.getCount());
+            }
+            mDatabaseBackend.endBulkInsert(db);
+            db.setTransactionSuccessful();
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            db.endTransaction();
+            inputStream.close();
+        }
+        return rows;
+    }
+
+    private static String insertStatement(final String table, final String[] columns) throws IOException {
+        if (!TABLES.contains(table)) {
+            throw new IOException("backup contains unknown table " + table);
+        }
+        final StringBuilder builder = new StringBuilder("INSERT INTO ");
+        builder.append(table).append('(');
+        for (int i = 0; i < columns.length; ++i) {
+            if (!COLUMN_NAME.matcher(columns[i]).matches()) {
+                throw new IOException("backup contains invalid column name " + columns[i]);
+            }
+            builder.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        builder.append(") VALUES (");
+        for (int i = 0; i < columns.length; ++i) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.append(')').toString();
+    }
+
     private void notifySuccess() {
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getBaseContext(), "backup");
         mBuilder.setContentTitle(getString(R.string.notification_restored_backup_title))
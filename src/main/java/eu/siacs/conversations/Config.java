@@ -95,7 +95,14 @@ public final class Config {
 
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
-    public static final int MAX_SEARCH_RESULTS = 300;
+    public static final int SEARCH_PAGE_SIZE = 100; // search results loaded at once
+    public static final long THUMBNAIL_DISK_CACHE_SIZE = 64 * 1024 * 1024; // bytes of pre-scaled thumbnails kept on disk
+    public static final long AVATAR_BITMAP_POOL_SIZE = 4 * 1024 * 1024; // bytes of decode buffers kept for reuse by avatars
+    public static final int DOWNLOAD_SEGMENT_SIZE = 1024 * 1024; // bytes fetched per Range request of an http download
+    public static final int DOWNLOAD_SEGMENT_CONNECTIONS = 3; // parallel Range requests per http download
+    public static final int MESSAGE_RESTORE_THREADS = 3; // threads restoring messages at startup
+    public static final int MESSAGE_WRITE_BATCH_SIZE = 100; // received messages committed in one transaction
+    public static final int MESSAGE_WRITE_DELAY = 250; // ms a received message may wait for its batch
 
     public static final int REFRESH_UI_INTERVAL = 500;
 
@@ -118,6 +125,8 @@ public final class Config {
     public static final boolean USE_DIRECT_JINGLE_CANDIDATES = true;
     public static final boolean DISABLE_HTTP_UPLOAD = false;
     public static final boolean EXTENDED_SM_LOGGING = false; // log stanza counts
+    public static final int STANZA_DISPATCH_QUEUE_CAPACITY = 256; // stanzas parsed ahead of handling
+    public static final int STANZA_DISPATCH_DRAIN_TIMEOUT = 10; // seconds
     public static final boolean BACKGROUND_STANZA_LOGGING = false; //log all stanzas that were received while the app is in background
     public static final boolean RESET_ATTEMPT_COUNT_ON_NETWORK_CHANGE = true; //setting to true might increase power consumption
 
@@ -127,6 +136,7 @@ public final class Config {
     public static final boolean REQUIRE_RTP_VERIFICATION = false; //require a/v calls to be verified with OMEMO
 
     public static final boolean ONLY_INTERNAL_STORAGE = false; //use internal storage instead of sdcard to save attachments
+    public static final boolean DEDUPLICATE_ATTACHMENTS = true; //store attachments with identical content only once
 
     public static final boolean IGNORE_ID_REWRITE_IN_MUC = true;
     public static final boolean MUC_LEAVE_BEFORE_JOIN = false;
@@ -140,6 +150,9 @@ public final class Config {
     public static final int TYPING_TIMEOUT = 8;
 
     public static final int EXPIRY_INTERVAL = 30 * 60 * 1000; // 30 minutes
+    public static final int EXPIRY_BATCH_SIZE = 500; // messages deleted per transaction
+    public static final int MESSAGE_INDEX_BATCH_SIZE = 1000; // messages added to the search index per transaction
+    public static final int ROSTER_SYNC_DELAY = 2000; // ms roster changes are collected before they are written
 
     public static final String[] ENABLED_CIPHERS = {
             "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
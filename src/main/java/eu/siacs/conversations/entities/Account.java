@@ -71,6 +71,7 @@ public class Account extends AbstractEntity implements AvatarService.Avatarable
     public static final int OPTION_UNVERIFIED = 8;
     public static final int OPTION_FIXED_USERNAME = 9;
     public static final int OPTION_QUICKSTART_AVAILABLE = 10;
+    public static final int OPTION_UTF8_XML_READER = 11; // parse the stream with Utf8XmlReader
 
     private static final String KEY_PGP_SIGNATURE = "pgp_signature";
     private static final String KEY_PGP_ID = "pgp_id";
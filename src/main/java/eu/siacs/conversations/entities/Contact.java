@@ -69,6 +69,7 @@ public class Contact implements ListItem, Blockable {
     private long mLastseen = 0;
     private String mLastPresence = null;
     private RtpCapability.Capability rtpCapability;
+    private ContentValues persistedValues = null;
 
     public Contact(final String account, final String systemName, final String serverName, final String presenceName,
                    final Jid jid, final int subscription, final String photoUri,
@@ -246,6 +247,19 @@ public class Contact implements ListItem, Blockable {
         }
     }
 
+    /**
+     * The values that have last been written to or read from the database. Comparing them with
+     * {@link #getContentValues()} tells whether the contact needs to be written again. Null if the
+     * contact is not in the database.
+     */
+    public synchronized ContentValues getPersistedValues() {
+        return this.persistedValues;
+    }
+
+    public synchronized void setPersistedValues(final ContentValues values) {
+        this.persistedValues = values;
+    }
+
     public Account getAccount() {
         return this.account;
     }
@@ -7,7 +7,9 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import org.json.JSONArray;
@@ -16,9 +18,10 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
@@ -67,6 +70,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    private final MessageIndex messageIndex = new MessageIndex();
+    // immutable copy of messages; reset to null by every modification and rebuilt on demand
+    private volatile List<Message> messagesSnapshot = Collections.emptyList();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -160,13 +166,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message getFirstUnreadMessage() {
         Message first = null;
-        synchronized (this.messages) {
-            for (int i = messages.size() - 1; i >= 0; --i) {
-                if (messages.get(i).isRead()) {
-                    return first;
-                } else {
-                    first = messages.get(i);
-                }
+        final List<Message> messages = getMessagesSnapshot();
+        for (int i = messages.size() - 1; i >= 0; --i) {
+            if (messages.get(i).isRead()) {
+                return first;
+            } else {
+                first = messages.get(i);
             }
         }
         return first;
@@ -217,14 +222,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return findCandidate(messageIndex.withUuid(uuid), message -> {
                 final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+                return (s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid);
+            }, false);
         }
-        return null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -242,44 +244,30 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public void findUnreadMessagesAndCalls(OnMessageFound onMessageFound) {
-        final ArrayList<Message> results = new ArrayList<>();
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.isRead()) {
-                    continue;
-                }
-                results.add(message);
+        for (final Message message : getMessagesSnapshot()) {
+            if (message.isRead()) {
+                continue;
             }
-        }
-        for (final Message result : results) {
-            onMessageFound.onMessageFound(result);
+            onMessageFound.onMessageFound(message);
         }
     }
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return findCandidate(messageIndex.withUuid(uuid), message -> {
                 final Transferable transferable = message.getTransferable();
                 final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-                if (message.getUuid().equals(uuid)
+                return message.getUuid().equals(uuid)
                         && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
-                    return message;
-                }
-            }
+                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING));
+            }, false);
         }
-        return null;
     }
 
     public Message findMessageWithUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+            return findCandidate(messageIndex.withUuid(uuid), message -> message.getUuid().equals(uuid), false);
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -320,6 +308,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void clearMessages() {
         synchronized (this.messages) {
             this.messages.clear();
+            this.messageIndex.clear();
+            this.messagesSnapshot = null;
         }
     }
 
@@ -359,7 +349,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                for (final Message discard : discards) {
+                    messageIndex.remove(discard);
+                }
                 discards.clear();
+                this.messagesSnapshot = null;
                 untieMessages();
             }
         }
@@ -381,15 +375,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(messageIndex.withUuid(id), messageIndex.withRemoteMsgId(id));
+            return findCandidate(candidates, message -> id.equals(message.getUuid())
+                    || (message.getStatus() >= Message.STATUS_SEND
+                    && id.equals(message.getRemoteMsgId())), false);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
@@ -416,36 +406,22 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuid(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
+            return findCandidate(messageIndex.withUuid(id), message -> id.equals(message.getUuid()), false);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(messageIndex.withRemoteMsgId(id), messageIndex.withUuid(id));
+            return findCandidate(candidates, message -> counterpart.equals(message.getCounterpart())
+                    && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid())), false);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
-                }
-            }
+            return findCandidate(messageIndex.withServerMsgId(id), message -> id != null && id.equals(message.getServerMsgId()), false);
         }
-        return null;
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
@@ -460,17 +436,36 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public void populateWithMessages(final List<Message> messages) {
-        synchronized (this.messages) {
-            messages.clear();
-            messages.addAll(this.messages);
+        messages.clear();
+        for (final Message message : getMessagesSnapshot()) {
+            if (!message.wasMergedIntoPrevious()) {
+                messages.add(message);
+            }
         }
-        for (Iterator<Message> iterator = messages.iterator(); iterator.hasNext(); ) {
-            if (iterator.next().wasMergedIntoPrevious()) {
-                iterator.remove();
+    }
+
+    /**
+     * Returns an immutable copy of the loaded messages. Readers share the copy until the next
+     * modification, so they neither block nor get blocked by threads adding messages. Only the
+     * first reader after a modification takes the lock to create a new copy.
+     */
+    public List<Message> getMessagesSnapshot() {
+        final List<Message> snapshot = this.messagesSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this.messages) {
+            if (this.messagesSnapshot == null) {
+                this.messagesSnapshot = Collections.unmodifiableList(new ArrayList<>(this.messages));
             }
+            return this.messagesSnapshot;
         }
     }
 
+    boolean isCurrentSnapshot(final List<Message> snapshot) {
+        return this.messagesSnapshot == snapshot;
+    }
+
     @Override
     public boolean isBlocked() {
         return getContact().isBlocked();
@@ -565,15 +560,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public boolean isRead() {
-        synchronized (this.messages) {
-            for(final Message message : Lists.reverse(this.messages)) {
-                if (message.isRead() && message.getType() == Message.TYPE_RTP_SESSION) {
-                    continue;
-                }
-                return message.isRead();
+        for (final Message message : Lists.reverse(getMessagesSnapshot())) {
+            if (message.isRead() && message.getType() == Message.TYPE_RTP_SESSION) {
+                continue;
             }
-            return true;
+            return message.isRead();
         }
+        return true;
     }
 
     public List<Message> markRead(String upToUuid) {
@@ -593,15 +586,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message getLatestMessage() {
-        synchronized (this.messages) {
-            if (this.messages.size() == 0) {
-                Message message = new Message(this, "", Message.ENCRYPTION_NONE);
-                message.setType(Message.TYPE_STATUS);
-                message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
-                return message;
-            } else {
-                return this.messages.get(this.messages.size() - 1);
-            }
+        final List<Message> messages = getMessagesSnapshot();
+        if (messages.size() == 0) {
+            Message message = new Message(this, "", Message.ENCRYPTION_NONE);
+            message.setType(Message.TYPE_STATUS);
+            message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
+            return message;
+        } else {
+            return messages.get(messages.size() - 1);
         }
     }
 
@@ -782,6 +774,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findDuplicateMessage(Message message) {
         synchronized (this.messages) {
+            if (message.getRemoteMsgId() != null) {
+                // Message.similar() can only match on the server id, the remote id or the uuid
+                // (including ids of previous edits) when the remote id is set
+                final Iterable<Message> candidates = Iterables.concat(
+                        messageIndex.withServerMsgId(message.getServerMsgId()),
+                        messageIndex.withRemoteMsgId(message.getRemoteMsgId()),
+                        messageIndex.withUuid(message.getRemoteMsgId()));
+                return findCandidate(candidates, candidate -> candidate.similar(message), true);
+            }
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 if (this.messages.get(i).similar(message)) {
                     return this.messages.get(i);
@@ -817,14 +818,8 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findRtpSession(final String sessionId, final int s) {
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                final Message message = this.messages.get(i);
-                if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION) && sessionId.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
-            }
+            return findCandidate(messageIndex.withRemoteMsgId(sessionId), message -> (message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION) && sessionId.equals(message.getRemoteMsgId()), true);
         }
-        return null;
     }
 
     public boolean possibleDuplicate(final String serverMsgId, final String remoteMsgId) {
@@ -832,13 +827,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(messageIndex.withServerMsgId(serverMsgId), messageIndex.withRemoteMsgId(remoteMsgId));
+            return findCandidate(candidates, message -> serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId()), false) != null;
         }
-        return false;
     }
 
     public MamReference getLastMessageTransmitted() {
@@ -982,18 +973,24 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
+            this.messagesSnapshot = null;
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messageIndex.add(message);
+            this.messagesSnapshot = null;
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
+            this.messagesSnapshot = null;
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
@@ -1001,10 +998,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    this.messageIndex.remove(message);
                 }
             }
+            this.messagesSnapshot = null;
             untieMessages();
         }
     }
@@ -1020,10 +1020,67 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                     return 0;
                 }
             });
+            this.messagesSnapshot = null;
             untieMessages();
         }
     }
 
+    void onUuidChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            this.messageIndex.uuidChanged(message, previous);
+        }
+    }
+
+    void onRemoteMsgIdChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            this.messageIndex.remoteMsgIdChanged(message, previous);
+        }
+    }
+
+    void onServerMsgIdChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            this.messageIndex.serverMsgIdChanged(message, previous);
+        }
+    }
+
+    void onEditAdded(final Message message, final Edit edit) {
+        synchronized (this.messages) {
+            this.messageIndex.editAdded(message, edit);
+        }
+    }
+
+    /**
+     * Picks the oldest (or newest) message out of a list of index candidates that matches the
+     * predicate. Must be called while holding the lock on {@link #messages}.
+     */
+    private Message findCandidate(final Iterable<Message> candidates, final Predicate<Message> predicate, final boolean newest) {
+        Message match = null;
+        Set<Message> matches = null;
+        for (final Message candidate : candidates) {
+            if (!predicate.apply(candidate) || candidate == match) {
+                continue;
+            }
+            if (match == null) {
+                match = candidate;
+            } else {
+                if (matches == null) {
+                    matches = Collections.newSetFromMap(new IdentityHashMap<>());
+                    matches.add(match);
+                }
+                matches.add(candidate);
+            }
+        }
+        if (matches == null || matches.size() == 1) {
+            return match;
+        }
+        for (final Message message : newest ? Lists.reverse(this.messages) : this.messages) {
+            if (matches.contains(message)) {
+                return message;
+            }
+        }
+        return match;
+    }
+
     private void untieMessages() {
         for (Message message : this.messages) {
             message.untie();
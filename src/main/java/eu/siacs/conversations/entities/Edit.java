@@ -51,7 +51,7 @@ public class Edit {
 
     static List<Edit> fromJson(String input) {
         final ArrayList<Edit> list = new ArrayList<>();
-        if (input == null) {
+        if (input == null || "[]".equals(input)) {
             return list;
         }
         try {
@@ -76,6 +76,10 @@ public class Edit {
         return editedId;
     }
 
+    String getServerMsgId() {
+        return serverMsgId;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
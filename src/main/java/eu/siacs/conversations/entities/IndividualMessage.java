@@ -31,8 +31,6 @@ package eu.siacs.conversations.entities;
 
 import android.database.Cursor;
 
-import java.util.Set;
-
 import eu.siacs.conversations.ui.adapter.MessageAdapter;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -43,7 +41,7 @@ public class IndividualMessage extends Message {
 		super(conversation);
 	}
 
-	private IndividualMessage(Conversational conversation, String uuid, String conversationUUid, Jid counterpart, Jid trueCounterpart, String body, long timeSent, int encryption, int status, int type, boolean carbon, String remoteMsgId, String relativeFilePath, String serverMsgId, String fingerprint, boolean read, String edited, boolean oob, String errorMessage, Set<ReadByMarker> readByMarkers, boolean markable, boolean deleted, String bodyLanguage) {
+	private IndividualMessage(Conversational conversation, String uuid, String conversationUUid, Jid counterpart, Jid trueCounterpart, String body, long timeSent, int encryption, int status, int type, boolean carbon, String remoteMsgId, String relativeFilePath, String serverMsgId, String fingerprint, boolean read, String edited, boolean oob, String errorMessage, String readByMarkers, boolean markable, boolean deleted, String bodyLanguage) {
 		super(conversation, uuid, conversationUUid, counterpart, trueCounterpart, body, timeSent, encryption, status, type, carbon, remoteMsgId, relativeFilePath, serverMsgId, fingerprint, read, edited, oob, errorMessage, readByMarkers, markable, deleted, bodyLanguage);
 	}
 
@@ -71,9 +69,13 @@ public class IndividualMessage extends Message {
 	}
 
 	public static Message fromCursor(Cursor cursor, Conversational conversation) {
+		return fromCursor(cursor, conversation, new CursorIndex(cursor));
+	}
+
+	public static Message fromCursor(final Cursor cursor, final Conversational conversation, final CursorIndex index) {
 		Jid jid;
 		try {
-			String value = cursor.getString(cursor.getColumnIndex(COUNTERPART));
+			String value = cursor.getString(index.counterpart);
 			if (value != null) {
 				jid = Jid.of(value);
 			} else {
@@ -86,7 +88,7 @@ public class IndividualMessage extends Message {
 		}
 		Jid trueCounterpart;
 		try {
-			String value = cursor.getString(cursor.getColumnIndex(TRUE_COUNTERPART));
+			String value = cursor.getString(index.trueCounterpart);
 			if (value != null) {
 				trueCounterpart = Jid.of(value);
 			} else {
@@ -96,28 +98,28 @@ public class IndividualMessage extends Message {
 			trueCounterpart = null;
 		}
 		return new IndividualMessage(conversation,
-				cursor.getString(cursor.getColumnIndex(UUID)),
-				cursor.getString(cursor.getColumnIndex(CONVERSATION)),
+				cursor.getString(index.uuid),
+				cursor.getString(index.conversation),
 				jid,
 				trueCounterpart,
-				cursor.getString(cursor.getColumnIndex(BODY)),
-				cursor.getLong(cursor.getColumnIndex(TIME_SENT)),
-				cursor.getInt(cursor.getColumnIndex(ENCRYPTION)),
-				cursor.getInt(cursor.getColumnIndex(STATUS)),
-				cursor.getInt(cursor.getColumnIndex(TYPE)),
-				cursor.getInt(cursor.getColumnIndex(CARBON)) > 0,
-				cursor.getString(cursor.getColumnIndex(REMOTE_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(RELATIVE_FILE_PATH)),
-				cursor.getString(cursor.getColumnIndex(SERVER_MSG_ID)),
-				cursor.getString(cursor.getColumnIndex(FINGERPRINT)),
-				cursor.getInt(cursor.getColumnIndex(READ)) > 0,
-				cursor.getString(cursor.getColumnIndex(EDITED)),
-				cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
-				cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-				ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
-				cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
-				cursor.getInt(cursor.getColumnIndex(DELETED)) > 0,
-				cursor.getString(cursor.getColumnIndex(BODY_LANGUAGE))
+				cursor.getString(index.body),
+				cursor.getLong(index.timeSent),
+				cursor.getInt(index.encryption),
+				cursor.getInt(index.status),
+				cursor.getInt(index.type),
+				cursor.getInt(index.carbon) > 0,
+				cursor.getString(index.remoteMsgId),
+				cursor.getString(index.relativeFilePath),
+				cursor.getString(index.serverMsgId),
+				cursor.getString(index.fingerprint),
+				cursor.getInt(index.read) > 0,
+				cursor.getString(index.edited),
+				cursor.getInt(index.oob) > 0,
+				cursor.getString(index.errorMessage),
+				cursor.getString(index.readByMarkers),
+				cursor.getInt(index.markable) > 0,
+				cursor.getInt(index.deleted) > 0,
+				cursor.getString(index.bodyLanguage)
 		);
 	}
 }
@@ -111,11 +111,13 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     protected String serverMsgId = null;
     private final Conversational conversation;
     protected Transferable transferable = null;
-    private Message mNextMessage = null;
-    private Message mPreviousMessage = null;
+    private volatile Message mNextMessage = null;
+    private volatile Message mPreviousMessage = null;
     private String axolotlFingerprint = null;
     private String errorMessage = null;
-    private Set<ReadByMarker> readByMarkers = new CopyOnWriteArraySet<>();
+    // decoded from readByMarkersJson on first access
+    private volatile Set<ReadByMarker> readByMarkers;
+    private String readByMarkersJson = null;
 
     private Boolean isGeoUri = null;
     private Boolean isEmojisOnly = null;
@@ -126,6 +128,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     protected Message(Conversational conversation) {
         this.conversation = conversation;
+        this.readByMarkers = new CopyOnWriteArraySet<>();
     }
 
     public Message(Conversational conversation, String body, int encryption) {
@@ -187,7 +190,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                       final int encryption, final int status, final int type, final boolean carbon,
                       final String remoteMsgId, final String relativeFilePath,
                       final String serverMsgId, final String fingerprint, final boolean read,
-                      final String edited, final boolean oob, final String errorMessage, final Set<ReadByMarker> readByMarkers,
+                      final String edited, final boolean oob, final String errorMessage, final String readByMarkers,
                       final boolean markable, final boolean deleted, final String bodyLanguage) {
         this.conversation = conversation;
         this.uuid = uuid;
@@ -208,39 +211,102 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         this.edits = Edit.fromJson(edited);
         this.oob = oob;
         this.errorMessage = errorMessage;
-        this.readByMarkers = readByMarkers == null ? new CopyOnWriteArraySet<>() : readByMarkers;
+        if (readByMarkers == null) {
+            this.readByMarkers = new CopyOnWriteArraySet<>();
+        } else {
+            this.readByMarkers = null;
+            this.readByMarkersJson = readByMarkers;
+        }
         this.markable = markable;
         this.deleted = deleted;
         this.bodyLanguage = bodyLanguage;
     }
 
     public static Message fromCursor(Cursor cursor, Conversation conversation) {
+        return fromCursor(cursor, conversation, new CursorIndex(cursor));
+    }
+
+    public static Message fromCursor(final Cursor cursor, final Conversation conversation, final CursorIndex index) {
         return new Message(conversation,
-                cursor.getString(cursor.getColumnIndex(UUID)),
-                cursor.getString(cursor.getColumnIndex(CONVERSATION)),
-                fromString(cursor.getString(cursor.getColumnIndex(COUNTERPART))),
-                fromString(cursor.getString(cursor.getColumnIndex(TRUE_COUNTERPART))),
-                cursor.getString(cursor.getColumnIndex(BODY)),
-                cursor.getLong(cursor.getColumnIndex(TIME_SENT)),
-                cursor.getInt(cursor.getColumnIndex(ENCRYPTION)),
-                cursor.getInt(cursor.getColumnIndex(STATUS)),
-                cursor.getInt(cursor.getColumnIndex(TYPE)),
-                cursor.getInt(cursor.getColumnIndex(CARBON)) > 0,
-                cursor.getString(cursor.getColumnIndex(REMOTE_MSG_ID)),
-                cursor.getString(cursor.getColumnIndex(RELATIVE_FILE_PATH)),
-                cursor.getString(cursor.getColumnIndex(SERVER_MSG_ID)),
-                cursor.getString(cursor.getColumnIndex(FINGERPRINT)),
-                cursor.getInt(cursor.getColumnIndex(READ)) > 0,
-                cursor.getString(cursor.getColumnIndex(EDITED)),
-                cursor.getInt(cursor.getColumnIndex(OOB)) > 0,
-                cursor.getString(cursor.getColumnIndex(ERROR_MESSAGE)),
-                ReadByMarker.fromJsonString(cursor.getString(cursor.getColumnIndex(READ_BY_MARKERS))),
-                cursor.getInt(cursor.getColumnIndex(MARKABLE)) > 0,
-                cursor.getInt(cursor.getColumnIndex(DELETED)) > 0,
-                cursor.getString(cursor.getColumnIndex(BODY_LANGUAGE))
+                cursor.getString(index.uuid),
+                cursor.getString(index.conversation),
+                fromString(cursor.getString(index.counterpart)),
+                fromString(cursor.getString(index.trueCounterpart)),
+                cursor.getString(index.body),
+                cursor.getLong(index.timeSent),
+                cursor.getInt(index.encryption),
+                cursor.getInt(index.status),
+                cursor.getInt(index.type),
+                cursor.getInt(index.carbon) > 0,
+                cursor.getString(index.remoteMsgId),
+                cursor.getString(index.relativeFilePath),
+                cursor.getString(index.serverMsgId),
+                cursor.getString(index.fingerprint),
+                cursor.getInt(index.read) > 0,
+                cursor.getString(index.edited),
+                cursor.getInt(index.oob) > 0,
+                cursor.getString(index.errorMessage),
+                cursor.getString(index.readByMarkers),
+                cursor.getInt(index.markable) > 0,
+                cursor.getInt(index.deleted) > 0,
+                cursor.getString(index.bodyLanguage)
         );
     }
 
+    /**
+     * Positions of the message columns in a cursor. Looking them up once per query instead of
+     * once per row and column saves a linear search over the column names for every value.
+     */
+    public static final class CursorIndex {
+        final int uuid;
+        final int conversation;
+        final int counterpart;
+        final int trueCounterpart;
+        final int body;
+        final int timeSent;
+        final int encryption;
+        final int status;
+        final int type;
+        final int carbon;
+        final int remoteMsgId;
+        final int relativeFilePath;
+        final int serverMsgId;
+        final int fingerprint;
+        final int read;
+        final int edited;
+        final int oob;
+        final int errorMessage;
+        final int readByMarkers;
+        final int markable;
+        final int deleted;
+        final int bodyLanguage;
+
+        public CursorIndex(final Cursor cursor) {
+            this.uuid = cursor.getColumnIndex(UUID);
+            this.conversation = cursor.getColumnIndex(CONVERSATION);
+            this.counterpart = cursor.getColumnIndex(COUNTERPART);
+            this.trueCounterpart = cursor.getColumnIndex(TRUE_COUNTERPART);
+            this.body = cursor.getColumnIndex(BODY);
+            this.timeSent = cursor.getColumnIndex(TIME_SENT);
+            this.encryption = cursor.getColumnIndex(ENCRYPTION);
+            this.status = cursor.getColumnIndex(STATUS);
+            this.type = cursor.getColumnIndex(TYPE);
+            this.carbon = cursor.getColumnIndex(CARBON);
+            this.remoteMsgId = cursor.getColumnIndex(REMOTE_MSG_ID);
+            this.relativeFilePath = cursor.getColumnIndex(RELATIVE_FILE_PATH);
+            this.serverMsgId = cursor.getColumnIndex(SERVER_MSG_ID);
+            this.fingerprint = cursor.getColumnIndex(FINGERPRINT);
+            this.read = cursor.getColumnIndex(READ);
+            this.edited = cursor.getColumnIndex(EDITED);
+            this.oob = cursor.getColumnIndex(OOB);
+            this.errorMessage = cursor.getColumnIndex(ERROR_MESSAGE);
+            this.readByMarkers = cursor.getColumnIndex(READ_BY_MARKERS);
+            this.markable = cursor.getColumnIndex(MARKABLE);
+            this.deleted = cursor.getColumnIndex(DELETED);
+            this.bodyLanguage = cursor.getColumnIndex(BODY_LANGUAGE);
+        }
+    }
+
     private static Jid fromString(String value) {
         try {
             if (value != null) {
@@ -300,7 +366,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         }
         values.put(OOB, oob ? 1 : 0);
         values.put(ERROR_MESSAGE, errorMessage);
-        values.put(READ_BY_MARKERS, ReadByMarker.toJson(readByMarkers).toString());
+        values.put(READ_BY_MARKERS, ReadByMarker.toJson(readByMarkers()).toString());
         values.put(MARKABLE, markable ? 1 : 0);
         values.put(DELETED, deleted ? 1 : 0);
         values.put(BODY_LANGUAGE, bodyLanguage);
@@ -405,7 +471,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setRemoteMsgId(String id) {
+        final String previous = this.remoteMsgId;
         this.remoteMsgId = id;
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).onRemoteMsgIdChanged(this, previous);
+        }
     }
 
     public String getServerMsgId() {
@@ -413,7 +483,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setServerMsgId(String id) {
+        final String previous = this.serverMsgId;
         this.serverMsgId = id;
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).onServerMsgIdChanged(this, previous);
+        }
     }
 
     public boolean isRead() {
@@ -468,6 +542,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         final Edit edit = new Edit(edited, serverMsgId);
         if (this.edits.size() < 128 && !this.edits.contains(edit)) {
             this.edits.add(edit);
+            if (this.conversation instanceof Conversation) {
+                ((Conversation) this.conversation).onEditAdded(this, edit);
+            }
         }
     }
 
@@ -519,9 +596,10 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 return false;
             }
         }
-        if (this.readByMarkers.add(readByMarker)) {
+        final Set<ReadByMarker> readByMarkers = readByMarkers();
+        if (readByMarkers.add(readByMarker)) {
             if (readByMarker.getRealJid() != null && readByMarker.getFullJid() != null) {
-                Iterator<ReadByMarker> iterator = this.readByMarkers.iterator();
+                Iterator<ReadByMarker> iterator = readByMarkers.iterator();
                 while (iterator.hasNext()) {
                     ReadByMarker marker = iterator.next();
                     if (marker.getRealJid() == null && readByMarker.getFullJid().equals(marker.getFullJid())) {
@@ -536,7 +614,21 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public Set<ReadByMarker> getReadByMarkers() {
-        return ImmutableSet.copyOf(this.readByMarkers);
+        return ImmutableSet.copyOf(readByMarkers());
+    }
+
+    private Set<ReadByMarker> readByMarkers() {
+        final Set<ReadByMarker> readByMarkers = this.readByMarkers;
+        if (readByMarkers != null) {
+            return readByMarkers;
+        }
+        synchronized (this) {
+            if (this.readByMarkers == null) {
+                this.readByMarkers = ReadByMarker.fromJsonString(this.readByMarkersJson);
+                this.readByMarkersJson = null;
+            }
+            return this.readByMarkers;
+        }
     }
 
     boolean similar(Message message) {
@@ -575,18 +667,24 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public Message next() {
         if (this.conversation instanceof Conversation) {
+            final Message cached = this.mNextMessage;
+            if (cached != null) {
+                return cached;
+            }
             final Conversation conversation = (Conversation) this.conversation;
+            final List<Message> messages = conversation.getMessagesSnapshot();
+            final int index = messages.indexOf(this);
+            if (index < 0 || index >= messages.size() - 1) {
+                return null;
+            }
+            final Message next = messages.get(index + 1);
             synchronized (conversation.messages) {
-                if (this.mNextMessage == null) {
-                    int index = conversation.messages.indexOf(this);
-                    if (index < 0 || index >= conversation.messages.size() - 1) {
-                        this.mNextMessage = null;
-                    } else {
-                        this.mNextMessage = conversation.messages.get(index + 1);
-                    }
+                // only cache if the list has not been reordered in the meantime
+                if (conversation.isCurrentSnapshot(messages)) {
+                    this.mNextMessage = next;
                 }
-                return this.mNextMessage;
             }
+            return next;
         } else {
             throw new AssertionError("Calling next should be disabled for stubs");
         }
@@ -594,18 +692,23 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public Message prev() {
         if (this.conversation instanceof Conversation) {
+            final Message cached = this.mPreviousMessage;
+            if (cached != null) {
+                return cached;
+            }
             final Conversation conversation = (Conversation) this.conversation;
+            final List<Message> messages = conversation.getMessagesSnapshot();
+            final int index = messages.indexOf(this);
+            if (index <= 0) {
+                return null;
+            }
+            final Message previous = messages.get(index - 1);
             synchronized (conversation.messages) {
-                if (this.mPreviousMessage == null) {
-                    int index = conversation.messages.indexOf(this);
-                    if (index <= 0 || index > conversation.messages.size()) {
-                        this.mPreviousMessage = null;
-                    } else {
-                        this.mPreviousMessage = conversation.messages.get(index - 1);
-                    }
+                if (conversation.isCurrentSnapshot(messages)) {
+                    this.mPreviousMessage = previous;
                 }
             }
-            return this.mPreviousMessage;
+            return previous;
         } else {
             throw new AssertionError("Calling prev should be disabled for stubs");
         }
@@ -773,7 +876,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
+        final String previous = this.uuid;
         this.uuid = uuid;
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).onUuidChanged(this, previous);
+        }
     }
 
     public String getEditedId() {
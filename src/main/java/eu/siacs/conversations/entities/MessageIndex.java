@@ -0,0 +1,158 @@
+package eu.siacs.conversations.entities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash indexes over the messages loaded into a {@link Conversation}. The index only narrows down
+ * candidates; callers still check every candidate with the same condition the linear scan used.
+ * Access is guarded by the lock on {@link Conversation#messages}.
+ *
+ * <p>Remote ids of edits are filed under remote ids and server ids of edits under server ids so
+ * that duplicate detection can find corrected messages as well.
+ */
+final class MessageIndex {
+
+    private final Set<Message> members = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<String, List<Message>> byUuid = new HashMap<>();
+    private final Map<String, List<Message>> byRemoteMsgId = new HashMap<>();
+    private final Map<String, List<Message>> byServerMsgId = new HashMap<>();
+
+    void add(final Message message) {
+        if (!members.add(message)) {
+            return;
+        }
+        put(byUuid, message.getUuid(), message);
+        put(byRemoteMsgId, message.getRemoteMsgId(), message);
+        put(byServerMsgId, message.getServerMsgId(), message);
+        for (final Edit edit : message.edits) {
+            put(byRemoteMsgId, edit.getEditedId(), message);
+            put(byServerMsgId, edit.getServerMsgId(), message);
+        }
+    }
+
+    void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    void remove(final Message message) {
+        if (!members.remove(message)) {
+            return;
+        }
+        remove(byUuid, message.getUuid(), message);
+        remove(byRemoteMsgId, message.getRemoteMsgId(), message);
+        remove(byServerMsgId, message.getServerMsgId(), message);
+        for (final Edit edit : message.edits) {
+            remove(byRemoteMsgId, edit.getEditedId(), message);
+            remove(byServerMsgId, edit.getServerMsgId(), message);
+        }
+    }
+
+    void clear() {
+        members.clear();
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+    }
+
+    void uuidChanged(final Message message, final String previous) {
+        if (members.contains(message)) {
+            remove(byUuid, previous, message);
+            put(byUuid, message.getUuid(), message);
+        }
+    }
+
+    void remoteMsgIdChanged(final Message message, final String previous) {
+        if (members.contains(message)) {
+            remove(byRemoteMsgId, previous, message);
+            put(byRemoteMsgId, message.getRemoteMsgId(), message);
+            for (final Edit edit : message.edits) {
+                put(byRemoteMsgId, edit.getEditedId(), message);
+            }
+        }
+    }
+
+    void serverMsgIdChanged(final Message message, final String previous) {
+        if (members.contains(message)) {
+            remove(byServerMsgId, previous, message);
+            put(byServerMsgId, message.getServerMsgId(), message);
+            for (final Edit edit : message.edits) {
+                put(byServerMsgId, edit.getServerMsgId(), message);
+            }
+        }
+    }
+
+    void editAdded(final Message message, final Edit edit) {
+        if (members.contains(message)) {
+            put(byRemoteMsgId, edit.getEditedId(), message);
+            put(byServerMsgId, edit.getServerMsgId(), message);
+        }
+    }
+
+    List<Message> withUuid(final String uuid) {
+        return get(byUuid, uuid);
+    }
+
+    List<Message> withRemoteMsgId(final String remoteMsgId) {
+        return get(byRemoteMsgId, remoteMsgId);
+    }
+
+    List<Message> withServerMsgId(final String serverMsgId) {
+        return get(byServerMsgId, serverMsgId);
+    }
+
+    private static List<Message> get(final Map<String, List<Message>> map, final String key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+        final List<Message> messages = map.get(key);
+        return messages == null ? Collections.emptyList() : messages;
+    }
+
+    private static void put(
+            final Map<String, List<Message>> map, final String key, final Message message) {
+        if (key == null) {
+            return;
+        }
+        List<Message> messages = map.get(key);
+        if (messages == null) {
+            messages = new ArrayList<>(1);
+            map.put(key, messages);
+        } else {
+            for (final Message existing : messages) {
+                if (existing == message) {
+                    return;
+                }
+            }
+        }
+        messages.add(message);
+    }
+
+    private static void remove(
+            final Map<String, List<Message>> map, final String key, final Message message) {
+        if (key == null) {
+            return;
+        }
+        final List<Message> messages = map.get(key);
+        if (messages == null) {
+            return;
+        }
+        for (int i = 0; i < messages.size(); ++i) {
+            if (messages.get(i) == message) {
+                messages.remove(i);
+                break;
+            }
+        }
+        if (messages.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
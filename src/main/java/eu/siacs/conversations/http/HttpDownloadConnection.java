@@ -4,15 +4,19 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
-import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Longs;
 
-import java.io.FileInputStream;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -46,6 +50,9 @@ public class HttpDownloadConnection implements Transferable {
     private boolean acceptedAutomatically = false;
     private int mProgress = 0;
     private Call mostRecentCall;
+    private SegmentedDownload segmentedDownload;
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private final AtomicLong received = new AtomicLong(0);
 
     HttpDownloadConnection(Message message, HttpConnectionManager manager) {
         this.message = message;
@@ -150,6 +157,10 @@ public class HttpDownloadConnection implements Transferable {
         if (call != null && !call.isCanceled()) {
             call.cancel();
         }
+        final SegmentedDownload segmentedDownload = this.segmentedDownload;
+        if (segmentedDownload != null) {
+            segmentedDownload.cancel();
+        }
         mHttpConnectionManager.finishConnection(this);
         message.setTransferable(null);
         if (message.isFileOrImage()) {
@@ -169,16 +180,15 @@ public class HttpDownloadConnection implements Transferable {
             Log.w(Config.LOGTAG, "unable to create output file " + outputFile.getAbsolutePath());
         }
 
-        final InputStream is = new FileInputStream(this.file);
-
-        outputFile.setKey(this.file.getKey());
-        outputFile.setIv(this.file.getIv());
-        final OutputStream os = AbstractConnectionManager.createOutputStream(outputFile, false, true);
-
-        ByteStreams.copy(is, os);
-
-        FileBackend.close(is);
-        FileBackend.close(os);
+        try {
+            AbstractConnectionManager.decrypt(this.file, outputFile);
+        } catch (final InvalidCipherTextIOException e) {
+            // resuming would only reuse the corrupt bytes
+            if (!file.delete()) {
+                Log.w(Config.LOGTAG, "unable to delete temporary OMEMO encrypted file " + file.getAbsolutePath());
+            }
+            throw new InvalidFileException("unable to authenticate " + outputFile.getName());
+        }
 
         if (!file.delete()) {
             Log.w(Config.LOGTAG, "unable to delete temporary OMEMO encrypted file " + file.getAbsolutePath());
@@ -237,6 +247,21 @@ public class HttpDownloadConnection implements Transferable {
         mHttpConnectionManager.updateConversationUi(false);
     }
 
+    private void onProgress(final int count, final long transmitted) {
+        received.addAndGet(count);
+        updateProgress(Math.round(((double) transmitted / file.getExpectedSize()) * 100));
+    }
+
+    /** Bytes per second received over the network during the current or most recent attempt. */
+    public long getBytesPerSecond() {
+        final long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        return millis == 0 ? 0 : received.get() * 1000L / millis;
+    }
+
+    private File getSegmentsFile() {
+        return new File(mXmppConnectionService.getCacheDir(), message.getUuid() + ".segments");
+    }
+
     @Override
     public int getStatus() {
         return this.mStatus;
@@ -370,8 +395,16 @@ public class HttpDownloadConnection implements Transferable {
         public void run() {
             try {
                 changeStatus(STATUS_DOWNLOADING);
-                download();
+                received.set(0);
+                stopwatch.reset().start();
+                try {
+                    download();
+                } finally {
+                    stopwatch.stop();
+                }
+                Log.d(Config.LOGTAG, "received " + received.get() + " bytes of " + file.getName() + " in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms (" + getBytesPerSecond() / 1024 + " KiB/s)");
                 decryptIfNeeded();
+                mXmppConnectionService.getFileBackend().deduplicate(message);
                 updateImageBounds();
                 finish();
             } catch (final SSLHandshakeException e) {
@@ -395,9 +428,23 @@ public class HttpDownloadConnection implements Transferable {
                     interactive
             );
 
+            final long expected = file.getExpectedSize();
+            if (expected > Config.DOWNLOAD_SEGMENT_SIZE) {
+                final SegmentedDownload segmentedDownload = new SegmentedDownload(client, URL.stripFragment(mUrl), file, getSegmentsFile(), expected, HttpDownloadConnection.this::onProgress);
+                HttpDownloadConnection.this.segmentedDownload = segmentedDownload;
+                try {
+                    segmentedDownload.run();
+                    return;
+                } catch (final SegmentedDownload.RangesNotSupportedException e) {
+                    Log.d(Config.LOGTAG, "server does not support ranges (" + e.getMessage() + "). falling back to a single request");
+                    segmentedDownload.discard();
+                } finally {
+                    HttpDownloadConnection.this.segmentedDownload = null;
+                }
+            }
+
             final Request.Builder requestBuilder = new Request.Builder().url(URL.stripFragment(mUrl));
 
-            final long expected = file.getExpectedSize();
             final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
             final long resumeSize;
             if (tryResume) {
@@ -419,7 +466,7 @@ public class HttpDownloadConnection implements Transferable {
             if (tryResume && serverResumed) {
                 Log.d(Config.LOGTAG, "server resumed");
                 transmitted = file.getSize();
-                updateProgress(Math.round(((double) transmitted / expected) * 100));
+                onProgress(0, transmitted);
                 outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
             } else {
                 final String contentLength = response.header("Content-Length");
@@ -435,7 +482,7 @@ public class HttpDownloadConnection implements Transferable {
                 outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
             }
             int count;
-            final byte[] buffer = new byte[4096];
+            final byte[] buffer = new byte[SegmentedDownload.BUFFER_SIZE];
             while ((count = inputStream.read(buffer)) != -1) {
                 transmitted += count;
                 try {
@@ -446,7 +493,7 @@ public class HttpDownloadConnection implements Transferable {
                 if (transmitted > expected) {
                     throw new InvalidFileException(String.format("File exceeds expected size of %d", expected));
                 }
-                updateProgress(Math.round(((double) transmitted / expected) * 100));
+                onProgress(count, transmitted);
             }
             outputStream.flush();
         }
@@ -474,9 +521,9 @@ public class HttpDownloadConnection implements Transferable {
         }
     }
 
-    private static class InvalidFileException extends IOException {
+    static class InvalidFileException extends IOException {
 
-        private InvalidFileException(final String message) {
+        InvalidFileException(final String message) {
             super(message);
         }
 
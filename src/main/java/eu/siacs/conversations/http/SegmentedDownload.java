@@ -0,0 +1,324 @@
+package eu.siacs.conversations.http;
+
+import android.util.Log;
+
+import com.google.common.primitives.Longs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.siacs.conversations.Config;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file of known size in segments of {@link Config#DOWNLOAD_SEGMENT_SIZE} bytes, using
+ * up to {@link Config#DOWNLOAD_SEGMENT_CONNECTIONS} Range requests in parallel. Every segment is
+ * written to its place in the file as it arrives.
+ *
+ * <p>Completed segments are recorded in a sidecar file: a header with version, segment size and
+ * file size followed by one byte per segment. A download that was interrupted, be it by a lost
+ * connection or the death of the process, only fetches the missing segments when it is started
+ * again. The bytes are stored as received; encrypted files are decrypted and authenticated once
+ * the download is complete.
+ */
+class SegmentedDownload {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int SIDECAR_VERSION = 1;
+    private static final int SIDECAR_HEADER_SIZE = 16;
+
+    interface Listener {
+        /**
+         * Called from the worker threads with the number of bytes just received and the number of
+         * bytes of the file that are present in total.
+         */
+        void onProgress(int count, long transmitted);
+    }
+
+    /** Thrown if the server answers a Range request with the entire file. */
+    static class RangesNotSupportedException extends IOException {
+
+        private RangesNotSupportedException(final String message) {
+            super(message);
+        }
+    }
+
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final File file;
+    private final File sidecar;
+    private final long size;
+    private final int segmentSize = Config.DOWNLOAD_SEGMENT_SIZE;
+    private final int segments;
+    private final Listener listener;
+    private final AtomicLong transmitted = new AtomicLong(0);
+    private final Set<Call> calls = new HashSet<>();
+    private volatile boolean cancelled = false;
+
+    SegmentedDownload(
+            final OkHttpClient client,
+            final HttpUrl url,
+            final File file,
+            final File sidecar,
+            final long size,
+            final Listener listener) {
+        this.client = client;
+        this.url = url;
+        this.file = file;
+        this.sidecar = sidecar;
+        this.size = size;
+        this.segments = (int) ((size + segmentSize - 1) / segmentSize);
+        this.listener = listener;
+    }
+
+    void run() throws IOException {
+        final boolean[] completed = restore();
+        final Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        long present = 0;
+        for (int i = 0; i < segments; ++i) {
+            if (completed[i]) {
+                present += end(i) - start(i);
+            } else {
+                pending.add(i);
+            }
+        }
+        Log.d(
+                Config.LOGTAG,
+                "segmented download of "
+                        + file.getName()
+                        + ": "
+                        + pending.size()
+                        + " of "
+                        + segments
+                        + " segments missing");
+        transmitted.set(present);
+        listener.onProgress(0, present);
+        final int threads = Math.min(Config.DOWNLOAD_SEGMENT_CONNECTIONS, pending.size());
+        if (threads == 0) {
+            discard();
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final RandomAccessFile data = new RandomAccessFile(file, "rw");
+                final RandomAccessFile marks = new RandomAccessFile(sidecar, "rw")) {
+            data.setLength(size);
+            final AtomicReference<IOException> failure = new AtomicReference<>();
+            final List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                workers.add(
+                        executor.submit(
+                                () -> {
+                                    try {
+                                        Integer segment;
+                                        while ((segment = pending.poll()) != null) {
+                                            fetch(segment, data.getChannel());
+                                            mark(segment, marks.getChannel());
+                                        }
+                                    } catch (final IOException e) {
+                                        // the first failure stops the other workers as well
+                                        failure.compareAndSet(null, e);
+                                        cancel();
+                                        throw e;
+                                    }
+                                    return null;
+                                }));
+            }
+            for (final Future<Void> worker : workers) {
+                try {
+                    await(worker);
+                } catch (final IOException e) {
+                    failure.compareAndSet(null, e);
+                    cancel();
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        discard();
+    }
+
+    void cancel() {
+        cancelled = true;
+        synchronized (calls) {
+            for (final Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+
+    /** Deletes the record of completed segments. The next download starts from scratch. */
+    void discard() {
+        if (sidecar.exists() && !sidecar.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + sidecar.getAbsolutePath());
+        }
+    }
+
+    private long start(final int segment) {
+        return (long) segment * segmentSize;
+    }
+
+    private long end(final int segment) {
+        return Math.min(size, start(segment) + segmentSize);
+    }
+
+    private void fetch(final int segment, final FileChannel channel) throws IOException {
+        final long start = start(segment);
+        final long end = end(segment);
+        final Request request =
+                new Request.Builder()
+                        .url(url)
+                        .addHeader("Accept-Encoding", "identity")
+                        .addHeader(
+                                "Range",
+                                String.format(Locale.ENGLISH, "bytes=%d-%d", start, end - 1))
+                        .build();
+        final Call call = client.newCall(request);
+        synchronized (calls) {
+            if (cancelled) {
+                throw new InterruptedIOException("download has been cancelled");
+            }
+            calls.add(call);
+        }
+        try (final Response response = call.execute()) {
+            final int code = response.code();
+            if (code >= 200 && code < 300 && code != 206) {
+                throw new RangesNotSupportedException("HTTP status code was " + code);
+            } else if (code != 206) {
+                throw new IOException(
+                        String.format(Locale.ENGLISH, "HTTP Status code was %d", code));
+            }
+            final String contentRange = response.header("Content-Range");
+            final String range = String.format(Locale.ENGLISH, "bytes %d-%d/", start, end - 1);
+            if (contentRange == null || !contentRange.startsWith(range)) {
+                throw new IOException("unexpected Content-Range " + contentRange);
+            }
+            // the expected size might come from the sender; never cut a larger file short
+            final String total = contentRange.substring(range.length()).trim();
+            if ("*".equals(total)) {
+                throw new RangesNotSupportedException("server did not report the file size");
+            }
+            final Long length = Longs.tryParse(total);
+            if (length == null) {
+                throw new IOException("unexpected Content-Range " + contentRange);
+            } else if (length != size) {
+                throw new HttpDownloadConnection.InvalidFileException(
+                        String.format(
+                                Locale.ENGLISH,
+                                "File size of %d does not match expected size of %d",
+                                length,
+                                size));
+            }
+            final ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("response has no body");
+            }
+            final InputStream inputStream = body.byteStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                if (position + count > end) {
+                    throw new IOException("segment " + segment + " exceeds its range");
+                }
+                final ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+                listener.onProgress(count, transmitted.addAndGet(count));
+            }
+            if (position != end) {
+                throw new IOException("segment " + segment + " is truncated");
+            }
+        } finally {
+            synchronized (calls) {
+                calls.remove(call);
+            }
+        }
+    }
+
+    private void mark(final int segment, final FileChannel channel) throws IOException {
+        final ByteBuffer done = ByteBuffer.wrap(new byte[] {1});
+        while (done.hasRemaining()) {
+            channel.write(done, SIDECAR_HEADER_SIZE + segment);
+        }
+    }
+
+    /**
+     * Reads the completed segments from the sidecar. If there is none, or it does not match the
+     * file, a new one without any completed segments is written.
+     */
+    private boolean[] restore() throws IOException {
+        final boolean[] completed = new boolean[segments];
+        if (sidecar.exists() && file.length() == size) {
+            try (final DataInputStream in = new DataInputStream(new FileInputStream(sidecar))) {
+                if (in.readInt() == SIDECAR_VERSION
+                        && in.readInt() == segmentSize
+                        && in.readLong() == size) {
+                    for (int i = 0; i < segments; ++i) {
+                        completed[i] = in.readByte() != 0;
+                    }
+                    return completed;
+                }
+            } catch (final IOException e) {
+                Log.d(Config.LOGTAG, "unable to read " + sidecar.getAbsolutePath(), e);
+            }
+        }
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("unable to create " + parent.getAbsolutePath());
+        }
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(sidecar))) {
+            out.writeInt(SIDECAR_VERSION);
+            out.writeInt(segmentSize);
+            out.writeLong(size);
+            out.write(new byte[segments]);
+        }
+        return new boolean[segments];
+    }
+
+    private static void await(final Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
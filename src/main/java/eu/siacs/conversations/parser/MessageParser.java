@@ -32,6 +32,7 @@ import eu.siacs.conversations.entities.ReadByMarker;
 import eu.siacs.conversations.entities.ReceiptRequest;
 import eu.siacs.conversations.entities.RtpSessionStatus;
 import eu.siacs.conversations.http.HttpConnectionManager;
+import eu.siacs.conversations.services.ConversationChange;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.QuickConversationsService;
 import eu.siacs.conversations.services.XmppConnectionService;
@@ -727,7 +728,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
 
             if (query == null) {
                 extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet);
-                mXmppConnectionService.updateConversationUi();
+                mXmppConnectionService.updateConversationUi(ConversationChange.messageAppended(message));
             }
 
             if (mXmppConnectionService.confirmMessages()
@@ -739,7 +740,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 processMessageReceipts(account, packet, remoteMsgId, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
+            mXmppConnectionService.databaseBackend.createMessageDeferred(message);
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
@@ -874,7 +875,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                                     message.setTime(timestamp);
                                     message.setBody(new RtpSessionStatus(false, 0).toString());
                                     c.add(message);
-                                    mXmppConnectionService.databaseBackend.createMessage(message);
+                                    mXmppConnectionService.databaseBackend.createMessageDeferred(message);
                                 }
                             } else if ("proceed".equals(action)) {
                                 //status needs to be flipped to find the original propose
@@ -921,7 +922,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                                         c.add(message);
                                     }
                                     query.incrementActualMessageCount();
-                                    mXmppConnectionService.databaseBackend.createMessage(message);
+                                    mXmppConnectionService.databaseBackend.createMessageDeferred(message);
                                 }
                             }
                         }
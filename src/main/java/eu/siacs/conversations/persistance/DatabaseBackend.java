@@ -12,6 +12,7 @@ import android.util.Base64;
 import android.util.Log;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -31,8 +32,10 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,10 +67,12 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 51;
+    private static final int DATABASE_VERSION = 55;
 
-    private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
+    private final MessageWriteQueue messageWriteQueue = new MessageWriteQueue(this);
+    private final DatabaseMetrics metrics = new DatabaseMetrics();
+    private final StatementCache statementCache = new StatementCache();
     private static final String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
             + Contact.SERVERNAME + " TEXT, " + Contact.SYSTEMNAME + " TEXT,"
@@ -168,18 +173,84 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + "UNIQUE(" + Resolver.Result.DOMAIN + ") ON CONFLICT REPLACE"
             + ");";
 
-    private static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
+    static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
-    private static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
-    private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
-    private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
-
-    private static final String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING fts4 (uuid,body,notindexed=\"uuid\",content=\"" + Message.TABLENAME + "\",tokenize='unicode61')";
-    private static final String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index(rowid,uuid,body) VALUES(NEW.rowid,NEW.uuid,NEW.body); END;";
-    private static final String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE OF uuid,body ON " + Message.TABLENAME + " BEGIN UPDATE messages_index SET body=NEW.body,uuid=NEW.uuid WHERE rowid=OLD.rowid; END;";
-    private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
+    static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
+    static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
+    static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
+    static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "CREATE INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
+    static final String CREATE_MESSAGE_FINGERPRINT_TIME_INDEX = "CREATE INDEX message_fingerprint_time_index ON " + Message.TABLENAME + "(" + Message.FINGERPRINT + "," + Message.TIME_SENT + ")";
+
+    // the prefix indexes serve the term* queries built by FtsUtils.toMatchString()
+    private static final String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING fts4 (uuid,body,notindexed=\"uuid\",content=\"" + Message.TABLENAME + "\",tokenize='unicode61',prefix=\"2,3\")";
+    // while the index is rebuilt in batches rows that have not been reached yet are left to the rebuild
+    private static final String CREATE_MESSAGE_INDEX_PROGRESS_TABLE = "CREATE TABLE IF NOT EXISTS messages_index_progress (last_rowid INTEGER, until_rowid INTEGER)";
+    private static final String NOT_PENDING = " WHEN NOT EXISTS (SELECT 1 FROM messages_index_progress WHERE %1$s.rowid>last_rowid AND %1$s.rowid<=until_rowid)";
+    private static final String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + String.format(NOT_PENDING, "NEW") + " BEGIN INSERT INTO messages_index(rowid,uuid,body) VALUES(NEW.rowid,NEW.uuid,NEW.body); END;";
+    private static final String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE OF uuid,body ON " + Message.TABLENAME + String.format(NOT_PENDING, "OLD") + " BEGIN UPDATE messages_index SET body=NEW.body,uuid=NEW.uuid WHERE rowid=OLD.rowid; END;";
+    private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + String.format(NOT_PENDING, "OLD") + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
+    // content addressed attachments; references are counted in the messages table by path
+    private static final String CREATE_ATTACHMENTS_TABLE = "CREATE TABLE IF NOT EXISTS attachments (hash TEXT PRIMARY KEY, path TEXT NOT NULL, size INTEGER NOT NULL)";
+    private static final String CREATE_ATTACHMENTS_PATH_INDEX = "CREATE INDEX IF NOT EXISTS attachments_path_index ON attachments(path)";
     private static final String COPY_PREEXISTING_ENTRIES = "INSERT INTO messages_index(messages_index) VALUES('rebuild');";
 
+    // the schema and queries below are shared with DatabaseQueryPlanTest, which checks that none of
+    // the queries that run for every conversation or account scans or sorts the messages table
+    static final String CREATE_ACCOUNTS_TABLE = "create table " + Account.TABLENAME + "(" + Account.UUID + " TEXT PRIMARY KEY,"
+            + Account.USERNAME + " TEXT,"
+            + Account.SERVER + " TEXT,"
+            + Account.PASSWORD + " TEXT,"
+            + Account.DISPLAY_NAME + " TEXT, "
+            + Account.STATUS + " TEXT,"
+            + Account.STATUS_MESSAGE + " TEXT,"
+            + Account.ROSTERVERSION + " TEXT,"
+            + Account.OPTIONS + " NUMBER, "
+            + Account.AVATAR + " TEXT, "
+            + Account.KEYS + " TEXT, "
+            + Account.HOSTNAME + " TEXT, "
+            + Account.RESOURCE + " TEXT,"
+            + Account.PINNED_MECHANISM + " TEXT,"
+            + Account.PINNED_CHANNEL_BINDING + " TEXT,"
+            + Account.FAST_MECHANISM + " TEXT,"
+            + Account.FAST_TOKEN + " TEXT,"
+            + Account.PORT + " NUMBER DEFAULT 5222)";
+    static final String CREATE_CONVERSATIONS_TABLE = "create table " + Conversation.TABLENAME + " ("
+            + Conversation.UUID + " TEXT PRIMARY KEY, " + Conversation.NAME
+            + " TEXT, " + Conversation.CONTACT + " TEXT, "
+            + Conversation.ACCOUNT + " TEXT, " + Conversation.CONTACTJID
+            + " TEXT, " + Conversation.CREATED + " NUMBER, "
+            + Conversation.STATUS + " NUMBER, " + Conversation.MODE
+            + " NUMBER, " + Conversation.ATTRIBUTES + " TEXT, FOREIGN KEY("
+            + Conversation.ACCOUNT + ") REFERENCES " + Account.TABLENAME
+            + "(" + Account.UUID + ") ON DELETE CASCADE);";
+    static final String CREATE_MESSAGES_TABLE = "create table " + Message.TABLENAME + "( " + Message.UUID
+            + " TEXT PRIMARY KEY, " + Message.CONVERSATION + " TEXT, "
+            + Message.TIME_SENT + " NUMBER, " + Message.COUNTERPART
+            + " TEXT, " + Message.TRUE_COUNTERPART + " TEXT,"
+            + Message.BODY + " TEXT, " + Message.ENCRYPTION + " NUMBER, "
+            + Message.STATUS + " NUMBER," + Message.TYPE + " NUMBER, "
+            + Message.RELATIVE_FILE_PATH + " TEXT, "
+            + Message.SERVER_MSG_ID + " TEXT, "
+            + Message.FINGERPRINT + " TEXT, "
+            + Message.CARBON + " INTEGER, "
+            + Message.EDITED + " TEXT, "
+            + Message.READ + " NUMBER DEFAULT 1, "
+            + Message.OOB + " INTEGER, "
+            + Message.ERROR_MESSAGE + " TEXT,"
+            + Message.READ_BY_MARKERS + " TEXT,"
+            + Message.MARKABLE + " NUMBER DEFAULT 0,"
+            + Message.DELETED + " NUMBER DEFAULT 0,"
+            + Message.BODY_LANGUAGE + " TEXT,"
+            + Message.REMOTE_MSG_ID + " TEXT, FOREIGN KEY("
+            + Message.CONVERSATION + ") REFERENCES "
+            + Conversation.TABLENAME + "(" + Conversation.UUID
+            + ") ON DELETE CASCADE);";
+
+    static final String SELECT_MESSAGES = "select * from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=? order by " + Message.TIME_SENT + " desc limit ?";
+    static final String SELECT_MESSAGES_BEFORE = "select * from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<? order by " + Message.TIME_SENT + " desc limit ?";
+    static final String SELECT_RELATIVE_FILE_PATHS = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and " + Message.RELATIVE_FILE_PATH + " is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
+    static final String SELECT_LAST_TIME_FINGERPRINT_USED = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
+
     private DatabaseBackend(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -191,17 +262,79 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return values;
     }
 
-    public static boolean requiresMessageIndexRebuild() {
-        return requiresMessageIndexRebuild;
-    }
-
     public void rebuildMessagesIndex() {
         final SQLiteDatabase db = getWritableDatabase();
         final Stopwatch stopwatch = Stopwatch.createStarted();
         db.execSQL(COPY_PREEXISTING_ENTRIES);
+        db.delete("messages_index_progress", null, null);
         Log.d(Config.LOGTAG,"rebuilt message index in "+ stopwatch.stop().toString());
     }
 
+    /**
+     * Returns the range of rowids (exclusive, inclusive) that still has to be added to the full
+     * text index or null if the index is complete.
+     */
+    private static long[] getPendingMessageIndexRange(final SQLiteDatabase db) {
+        try (final Cursor cursor = db.rawQuery("SELECT last_rowid,until_rowid FROM messages_index_progress", null)) {
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getLong(0), cursor.getLong(1)};
+            }
+            return null;
+        }
+    }
+
+    public boolean hasPendingMessageIndex() {
+        return getPendingMessageIndexRange(getReadableDatabase()) != null;
+    }
+
+    /**
+     * Adds the next {@code limit} messages to the full text index. The progress is stored in the
+     * same transaction, so the rebuild continues where it left off after the process got killed.
+     *
+     * @return true if there are messages left to index
+     */
+    public boolean indexPendingMessages(final int limit) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final long[] range = getPendingMessageIndexRange(db);
+            if (range == null) {
+                return false;
+            }
+            final String last = String.valueOf(range[0]);
+            final String until = String.valueOf(range[1]);
+            final long end = DatabaseUtils.longForQuery(db, "SELECT ifnull(max(rowid),?) FROM (SELECT rowid FROM " + Message.TABLENAME + " WHERE rowid>? AND rowid<=? ORDER BY rowid LIMIT " + limit + ")", new String[]{until, last, until});
+            db.execSQL("INSERT INTO messages_index(rowid,uuid,body) SELECT rowid,uuid,body FROM " + Message.TABLENAME + " WHERE rowid>? AND rowid<=?", new Object[]{range[0], end});
+            final boolean done = end >= range[1];
+            if (done) {
+                db.delete("messages_index_progress", null, null);
+            } else {
+                final ContentValues values = new ContentValues();
+                values.put("last_rowid", end);
+                db.update("messages_index_progress", values, null, null);
+            }
+            db.setTransactionSuccessful();
+            return !done;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Stops updating the full text index for every inserted message. Must be called inside a
+     * transaction that calls {@link #endBulkInsert(SQLiteDatabase)} before it is committed; a
+     * rollback restores the trigger.
+     */
+    public void beginBulkInsert(final SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+    }
+
+    /** Restores the insert trigger and rebuilds the full text index once for all inserted rows. */
+    public void endBulkInsert(final SQLiteDatabase db) {
+        db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
+        rebuildMessagesIndex();
+    }
+
     public static synchronized DatabaseBackend getInstance(Context context) {
         if (instance == null) {
             instance = new DatabaseBackend(context);
@@ -213,61 +346,48 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void onConfigure(SQLiteDatabase db) {
         db.execSQL("PRAGMA foreign_keys=ON");
         db.rawQuery("PRAGMA secure_delete=ON", null).close();
+        // enabled last so the pragmas above are applied to the primary connection, which is the
+        // only one that writes; readers get their own connections and no longer wait for writes
+        if (!db.enableWriteAheadLogging()) {
+            Log.d(Config.LOGTAG, "unable to enable write-ahead logging");
+        }
+    }
+
+    /**
+     * Moves the content of the write-ahead log into the database and truncates the log. Meant to
+     * be called when the app is idle; if readers or writers are active the checkpoint does as much
+     * as it can without waiting for them.
+     */
+    public void checkpoint() {
+        final SQLiteDatabase db = getWritableDatabase();
+        final File wal = new File(db.getPath() + "-wal");
+        final long walSize = wal.length();
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try (final Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+            final boolean busy = cursor.moveToFirst() && cursor.getInt(0) != 0;
+            Log.d(
+                    Config.LOGTAG,
+                    "checkpoint (busy="
+                            + busy
+                            + ") reduced wal from "
+                            + walSize / 1024
+                            + "KiB to "
+                            + wal.length() / 1024
+                            + "KiB in "
+                            + stopwatch.stop()
+                            + ". "
+                            + metrics.reset());
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("create table " + Account.TABLENAME + "(" + Account.UUID + " TEXT PRIMARY KEY,"
-                + Account.USERNAME + " TEXT,"
-                + Account.SERVER + " TEXT,"
-                + Account.PASSWORD + " TEXT,"
-                + Account.DISPLAY_NAME + " TEXT, "
-                + Account.STATUS + " TEXT,"
-                + Account.STATUS_MESSAGE + " TEXT,"
-                + Account.ROSTERVERSION + " TEXT,"
-                + Account.OPTIONS + " NUMBER, "
-                + Account.AVATAR + " TEXT, "
-                + Account.KEYS + " TEXT, "
-                + Account.HOSTNAME + " TEXT, "
-                + Account.RESOURCE + " TEXT,"
-                + Account.PINNED_MECHANISM + " TEXT,"
-                + Account.PINNED_CHANNEL_BINDING + " TEXT,"
-                + Account.FAST_MECHANISM + " TEXT,"
-                + Account.FAST_TOKEN + " TEXT,"
-                + Account.PORT + " NUMBER DEFAULT 5222)");
-        db.execSQL("create table " + Conversation.TABLENAME + " ("
-                + Conversation.UUID + " TEXT PRIMARY KEY, " + Conversation.NAME
-                + " TEXT, " + Conversation.CONTACT + " TEXT, "
-                + Conversation.ACCOUNT + " TEXT, " + Conversation.CONTACTJID
-                + " TEXT, " + Conversation.CREATED + " NUMBER, "
-                + Conversation.STATUS + " NUMBER, " + Conversation.MODE
-                + " NUMBER, " + Conversation.ATTRIBUTES + " TEXT, FOREIGN KEY("
-                + Conversation.ACCOUNT + ") REFERENCES " + Account.TABLENAME
-                + "(" + Account.UUID + ") ON DELETE CASCADE);");
-        db.execSQL("create table " + Message.TABLENAME + "( " + Message.UUID
-                + " TEXT PRIMARY KEY, " + Message.CONVERSATION + " TEXT, "
-                + Message.TIME_SENT + " NUMBER, " + Message.COUNTERPART
-                + " TEXT, " + Message.TRUE_COUNTERPART + " TEXT,"
-                + Message.BODY + " TEXT, " + Message.ENCRYPTION + " NUMBER, "
-                + Message.STATUS + " NUMBER," + Message.TYPE + " NUMBER, "
-                + Message.RELATIVE_FILE_PATH + " TEXT, "
-                + Message.SERVER_MSG_ID + " TEXT, "
-                + Message.FINGERPRINT + " TEXT, "
-                + Message.CARBON + " INTEGER, "
-                + Message.EDITED + " TEXT, "
-                + Message.READ + " NUMBER DEFAULT 1, "
-                + Message.OOB + " INTEGER, "
-                + Message.ERROR_MESSAGE + " TEXT,"
-                + Message.READ_BY_MARKERS + " TEXT,"
-                + Message.MARKABLE + " NUMBER DEFAULT 0,"
-                + Message.DELETED + " NUMBER DEFAULT 0,"
-                + Message.BODY_LANGUAGE + " TEXT,"
-                + Message.REMOTE_MSG_ID + " TEXT, FOREIGN KEY("
-                + Message.CONVERSATION + ") REFERENCES "
-                + Conversation.TABLENAME + "(" + Conversation.UUID
-                + ") ON DELETE CASCADE);");
+        db.execSQL(CREATE_ACCOUNTS_TABLE);
+        db.execSQL(CREATE_CONVERSATIONS_TABLE);
+        db.execSQL(CREATE_MESSAGES_TABLE);
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        db.execSQL(CREATE_MESSAGE_FINGERPRINT_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -280,9 +400,12 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_PRESENCE_TEMPLATES_STATEMENT);
         db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
         db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
+        db.execSQL(CREATE_MESSAGE_INDEX_PROGRESS_TABLE);
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
         db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+        db.execSQL(CREATE_ATTACHMENTS_TABLE);
+        db.execSQL(CREATE_ATTACHMENTS_PATH_INDEX);
     }
 
     @Override
@@ -586,12 +709,13 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("DROP TABLE IF EXISTS messages_index_segments;");
             db.execSQL("DROP TABLE IF EXISTS messages_index_stat;");
             db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
+            db.execSQL(CREATE_MESSAGE_INDEX_PROGRESS_TABLE);
             db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
             db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
             db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+            db.execSQL("INSERT INTO messages_index_progress(last_rowid,until_rowid) SELECT 0,ifnull(max(rowid),0) FROM " + Message.TABLENAME);
             db.setTransactionSuccessful();
             db.endTransaction();
-            requiresMessageIndexRebuild = true;
         }
         if (oldVersion < 50 && newVersion >= 50) {
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.PINNED_MECHANISM + " TEXT");
@@ -601,6 +725,32 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_MECHANISM + " TEXT");
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_TOKEN + " TEXT");
         }
+        if (oldVersion < 52 && newVersion >= 52) {
+            // conversationUuid is a prefix of the composite index; keeping both only slows down inserts
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            db.execSQL(CREATE_MESSAGE_FINGERPRINT_TIME_INDEX);
+        }
+        if (oldVersion < 53 && newVersion >= 53) {
+            db.execSQL(CREATE_MESSAGE_INDEX_PROGRESS_TABLE);
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_update");
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_delete");
+            db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
+            db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
+            db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+        }
+        if (oldVersion < 54 && newVersion >= 54) {
+            // recreated with prefix indexes and refilled in the background by MessageIndexer
+            db.execSQL("DROP TABLE IF EXISTS messages_index");
+            db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
+            db.execSQL("DELETE FROM messages_index_progress");
+            db.execSQL("INSERT INTO messages_index_progress(last_rowid,until_rowid) SELECT 0,ifnull(max(rowid),0) FROM " + Message.TABLENAME);
+        }
+        if (oldVersion < 55 && newVersion >= 55) {
+            db.execSQL(CREATE_ATTACHMENTS_TABLE);
+            db.execSQL(CREATE_ATTACHMENTS_PATH_INDEX);
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -688,8 +838,35 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void createMessage(Message message) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(Message.TABLENAME, null, message.getContentValues());
+        insertMessage(db, message);
+    }
+
+    long insertMessage(final SQLiteDatabase db, final Message message) {
+        return statementCache.insert(db, Message.TABLENAME, message.getContentValues());
+    }
+
+    /**
+     * Like {@link #createMessage(Message)} but the insert is committed later together with other
+     * messages. Call {@link #commitMessages()} before acknowledging the stanza the message came in.
+     */
+    public void createMessageDeferred(final Message message) {
+        messageWriteQueue.insert(message);
+    }
+
+    /** Writes all deferred message inserts; failures are logged and retried with the next write. */
+    public void flushMessages() {
+        messageWriteQueue.flush();
+    }
+
+    /**
+     * Commits all deferred message inserts.
+     *
+     * @throws IOException if they could not be written and must not be acknowledged yet
+     */
+    public void commitMessages() throws IOException {
+        messageWriteQueue.commit();
     }
 
     public void createAccount(Account account) {
@@ -789,56 +966,99 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * Returns the time of the most recent message for every conversation that has messages,
+     * keyed by conversation uuid.
+     */
+    public Map<String, Long> getLastMessageTimestamps() {
+        messageWriteQueue.flush();
+        final Map<String, Long> timestamps = new HashMap<>();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        try (final Cursor cursor = db.rawQuery("select " + Message.CONVERSATION + ",max(" + Message.TIME_SENT + ") from " + Message.TABLENAME + " group by " + Message.CONVERSATION, null)) {
+            while (cursor.moveToNext()) {
+                timestamps.put(cursor.getString(0), cursor.getLong(1));
+            }
+        }
+        return timestamps;
+    }
+
     public ArrayList<Message> getMessages(Conversation conversations, int limit) {
         return getMessages(conversations, limit, -1);
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
+        messageWriteQueue.flush();
+        final long start = SystemClock.elapsedRealtime();
         ArrayList<Message> list = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
         Cursor cursor;
         if (timestamp == -1) {
-            String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
+            String[] selectionArgs = {conversation.getUuid(), String.valueOf(limit)};
+            cursor = db.rawQuery(SELECT_MESSAGES, selectionArgs);
         } else {
             String[] selectionArgs = {conversation.getUuid(),
-                    Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                            + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
+                    Long.toString(timestamp), String.valueOf(limit)};
+            cursor = db.rawQuery(SELECT_MESSAGES_BEFORE, selectionArgs);
         }
         CursorUtils.upgradeCursorWindowSize(cursor);
+        final Message.CursorIndex index = new Message.CursorIndex(cursor);
         while (cursor.moveToNext()) {
             try {
-                list.add(0, Message.fromCursor(cursor, conversation));
+                list.add(Message.fromCursor(cursor, conversation, index));
             } catch (Exception e) {
                 Log.e(Config.LOGTAG, "unable to restore message");
             }
         }
         cursor.close();
+        metrics.query(SystemClock.elapsedRealtime() - start);
+        // the query returns the newest messages first
+        Collections.reverse(list);
         return list;
     }
 
-    public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
+    /**
+     * Returns up to {@link Config#SEARCH_PAGE_SIZE} matching messages, newest first. Further pages
+     * are requested with the time and uuid of the last row of the previous page; with a null
+     * {@code beforeUuid} the first page is returned.
+     */
+    public Cursor getMessageSearchCursor(final List<String> term, final String uuid, final long beforeTimeSent, final String beforeUuid) {
+        messageWriteQueue.flush();
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
-        final String[] selectionArgs;
-        SQL.append("SELECT " + Message.TABLENAME + ".*," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + "," + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.MODE + " FROM " + Message.TABLENAME + " JOIN " + Conversation.TABLENAME + " ON " + Message.TABLENAME + "." + Message.CONVERSATION + "=" + Conversation.TABLENAME + "." + Conversation.UUID + " JOIN messages_index ON messages_index.rowid=messages.rowid WHERE " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + "," + Message.ENCRYPTION_PGP + "," + Message.ENCRYPTION_DECRYPTION_FAILED + "," + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + "," + Message.TYPE_PRIVATE + ") AND messages_index.body MATCH ?");
-        if (uuid == null) {
-            selectionArgs = new String[]{FtsUtils.toMatchString(term)};
-        } else {
-            selectionArgs = new String[]{FtsUtils.toMatchString(term), uuid};
-            SQL.append(" AND " + Conversation.TABLENAME + '.' + Conversation.UUID + "=?");
-        }
-        SQL.append(" ORDER BY " + Message.TIME_SENT + " DESC limit " + Config.MAX_SEARCH_RESULTS);
-        Log.d(Config.LOGTAG, "search term: " + FtsUtils.toMatchString(term));
-        return db.rawQuery(SQL.toString(), selectionArgs);
+        final List<String> selectionArgs = new ArrayList<>();
+        final String select = "SELECT " + Message.TABLENAME + ".*," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + "," + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.MODE + " FROM " + Message.TABLENAME + " JOIN " + Conversation.TABLENAME + " ON " + Message.TABLENAME + "." + Message.CONVERSATION + "=" + Conversation.TABLENAME + "." + Conversation.UUID;
+        final StringBuilder where = new StringBuilder(" WHERE " + Message.ENCRYPTION + " NOT IN(" + Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE + "," + Message.ENCRYPTION_PGP + "," + Message.ENCRYPTION_DECRYPTION_FAILED + "," + Message.ENCRYPTION_AXOLOTL_FAILED + ") AND " + Message.TYPE + " IN(" + Message.TYPE_TEXT + "," + Message.TYPE_PRIVATE + ")");
+        final List<String> whereArgs = new ArrayList<>();
+        if (uuid != null) {
+            where.append(" AND " + Conversation.TABLENAME + '.' + Conversation.UUID + "=?");
+            whereArgs.add(uuid);
+        }
+        if (beforeUuid != null) {
+            final String column = Message.TABLENAME + "." + Message.TIME_SENT;
+            where.append(" AND (" + column + "<? OR (" + column + "=? AND " + Message.TABLENAME + "." + Message.UUID + "<?))");
+            whereArgs.add(String.valueOf(beforeTimeSent));
+            whereArgs.add(String.valueOf(beforeTimeSent));
+            whereArgs.add(beforeUuid);
+        }
+        SQL.append(select).append(" JOIN messages_index ON messages_index.rowid=messages.rowid").append(where).append(" AND messages_index.body MATCH ?");
+        selectionArgs.addAll(whereArgs);
+        selectionArgs.add(FtsUtils.toMatchString(term));
+        final long[] pending = getPendingMessageIndexRange(db);
+        if (pending != null) {
+            // the index is still being rebuilt; scan the part that has not been reached yet
+            SQL.append(" UNION ALL ").append(select).append(where).append(" AND " + Message.TABLENAME + ".rowid>? AND " + Message.TABLENAME + ".rowid<=?");
+            selectionArgs.addAll(whereArgs);
+            selectionArgs.add(String.valueOf(pending[0]));
+            selectionArgs.add(String.valueOf(pending[1]));
+            SQL.append(" AND ").append(FtsUtils.toLikeCondition(Message.TABLENAME + "." + Message.BODY, term, selectionArgs));
+        }
+        SQL.append(" ORDER BY " + Message.TIME_SENT + " DESC," + Message.UUID + " DESC LIMIT " + Config.SEARCH_PAGE_SIZE);
+        Log.d(Config.LOGTAG, "search term: " + FtsUtils.toMatchString(term) + (pending == null ? "" : " (index pending after rowid " + pending[0] + ")"));
+        return db.rawQuery(SQL.toString(), selectionArgs.toArray(new String[0]));
     }
 
     public List<String> markFileAsDeleted(final File file, final boolean internal) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getReadableDatabase();
         String selection;
         String[] selectionArgs;
@@ -864,10 +1084,12 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             cursor.close();
         }
         markFileAsDeleted(uuids);
+        db.delete("attachments", "path=?", new String[]{file.getAbsolutePath()});
         return uuids;
     }
 
     public void markFileAsDeleted(List<String> uuids) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getReadableDatabase();
         final ContentValues contentValues = new ContentValues();
         final String where = Message.UUID + "=?";
@@ -881,6 +1103,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFilesAsChanged(List<FilePathInfo> files) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getReadableDatabase();
         final String where = Message.UUID + "=?";
         db.beginTransaction();
@@ -888,12 +1111,71 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             final ContentValues contentValues = new ContentValues();
             contentValues.put(Message.DELETED, info.deleted ? 1 : 0);
             db.update(Message.TABLENAME, contentValues, where, new String[]{info.uuid.toString()});
+            if (info.deleted) {
+                db.delete("attachments", "path=?", new String[]{info.path});
+            }
         }
         db.setTransactionSuccessful();
         db.endTransaction();
     }
 
+    /**
+     * Returns the path of the attachment with the given hash and points the message at it, in one
+     * transaction. If there is no such attachment, or its file is gone, path is registered for the
+     * hash instead. Returns null and changes nothing if the message has not been stored yet.
+     */
+    public String acquireAttachment(final String hash, final String path, final long size, final String uuid) {
+        // the message row has to exist before it can be pointed at a shared file
+        messageWriteQueue.flush();
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final String[] args = {hash};
+        db.beginTransaction();
+        try {
+            String existing = null;
+            try (final Cursor cursor = db.rawQuery("SELECT path,size FROM attachments WHERE hash=?", args)) {
+                if (cursor.moveToFirst() && cursor.getLong(1) == size && new File(cursor.getString(0)).exists()) {
+                    existing = cursor.getString(0);
+                }
+            }
+            final String result = existing != null ? existing : path;
+            final ContentValues message = new ContentValues();
+            message.put(Message.RELATIVE_FILE_PATH, result);
+            if (db.update(Message.TABLENAME, message, Message.UUID + "=?", new String[]{uuid}) != 1) {
+                return null;
+            }
+            if (existing == null) {
+                final ContentValues values = new ContentValues();
+                values.put("hash", hash);
+                values.put("path", path);
+                values.put("size", size);
+                db.insertWithOnConflict("attachments", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the number of messages other than the given one that are not marked as deleted and
+     * use the registered attachment at path. Files that are not registered attachments belong to
+     * a single message and have no other references. Counting the messages table itself keeps
+     * the numbers right however messages are deleted, be it by clearing a conversation, removing
+     * an account or expiry.
+     */
+    public long countAttachmentReferences(final String path, final String excludedUuid) {
+        messageWriteQueue.flush();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM " + Message.TABLENAME + " WHERE " + Message.RELATIVE_FILE_PATH + "=? AND " + Message.DELETED + "=0 AND " + Message.UUID + "!=? AND EXISTS (SELECT 1 FROM attachments WHERE path=?)", new String[]{path, excludedUuid, path});
+    }
+
+    public void removeAttachmentAt(final String path) {
+        this.getWritableDatabase().delete("attachments", "path=?", new String[]{path});
+    }
+
     public List<FilePathInfo> getFilePathInfo() {
+        messageWriteQueue.flush();
         final SQLiteDatabase db = this.getReadableDatabase();
         final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.DELETED}, "type in (1,2,5) and " + Message.RELATIVE_FILE_PATH + " is not null", null, null, null, null);
         final List<FilePathInfo> list = new ArrayList<>();
@@ -907,15 +1189,17 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePath> getRelativeFilePaths(String account, Jid jid, int limit) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getReadableDatabase();
-        final String SQL = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and " + Message.RELATIVE_FILE_PATH + " is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
         final String[] args = {account, jid.toString(), jid.toString() + "/%"};
-        Cursor cursor = db.rawQuery(SQL + (limit > 0 ? " limit " + limit : ""), args);
+        final long start = SystemClock.elapsedRealtime();
+        Cursor cursor = db.rawQuery(SELECT_RELATIVE_FILE_PATHS + (limit > 0 ? " limit " + limit : ""), args);
         List<FilePath> filesPaths = new ArrayList<>();
         while (cursor.moveToNext()) {
             filesPaths.add(new FilePath(cursor.getString(0), cursor.getString(1)));
         }
         cursor.close();
+        metrics.query(SystemClock.elapsedRealtime() - start);
         return filesPaths;
     }
 
@@ -967,9 +1251,8 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public void updateConversation(final Conversation conversation) {
         final SQLiteDatabase db = this.getWritableDatabase();
-        final String[] args = {conversation.getUuid()};
-        db.update(Conversation.TABLENAME, conversation.getContentValues(),
-                Conversation.UUID + "=?", args);
+        statementCache.update(db, Conversation.TABLENAME, conversation.getContentValues(),
+                Conversation.UUID, conversation.getUuid());
     }
 
     public List<Account> getAccounts() {
@@ -1018,20 +1301,23 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, boolean includeBody) {
+        if (messageWriteQueue.isPending(message)) {
+            return true;
+        }
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getWritableDatabase();
-        String[] args = {message.getUuid()};
         ContentValues contentValues = message.getContentValues();
         contentValues.remove(Message.UUID);
         if (!includeBody) {
             contentValues.remove(Message.BODY);
         }
-        return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+        return statementCache.update(db, Message.TABLENAME, contentValues, Message.UUID, message.getUuid()) == 1;
     }
 
     public boolean updateMessage(Message message, String uuid) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getWritableDatabase();
-        String[] args = {uuid};
-        return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+        return statementCache.update(db, Message.TABLENAME, message.getContentValues(), Message.UUID, uuid) == 1;
     }
 
     public void readRoster(Roster roster) {
@@ -1040,34 +1326,64 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         try (final Cursor cursor =
                 db.query(Contact.TABLENAME, null, Contact.ACCOUNT + "=?", args, null, null, null)) {
             while (cursor.moveToNext()) {
-                roster.initContact(Contact.fromCursor(cursor));
+                final Contact contact = Contact.fromCursor(cursor);
+                if (contact != null) {
+                    contact.setPersistedValues(contact.getContentValues());
+                }
+                roster.initContact(contact);
             }
         }
     }
 
+    /**
+     * Writes the contacts that changed since they have last been written and removes those that
+     * should no longer be stored. The roster version is written in the same transaction so that it
+     * never gets ahead of the stored contacts.
+     */
     public void writeRoster(final Roster roster) {
         long start = SystemClock.elapsedRealtime();
         final Account account = roster.getAccount();
         final SQLiteDatabase db = this.getWritableDatabase();
+        final Map<Contact, ContentValues> written = new HashMap<>();
+        int deleted = 0;
         db.beginTransaction();
-        for (Contact contact : roster.getContacts()) {
-            if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
-            } else {
-                String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
-                String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+        try {
+            for (Contact contact : roster.getContacts()) {
+                final ContentValues persisted = contact.getPersistedValues();
+                if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
+                    final ContentValues values = contact.getContentValues();
+                    if (!values.equals(persisted)) {
+                        statementCache.insert(db, Contact.TABLENAME, values);
+                        written.put(contact, values);
+                    }
+                } else if (persisted != null) {
+                    String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
+                    String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
+                    db.delete(Contact.TABLENAME, where, whereArgs);
+                    written.put(contact, null);
+                    ++deleted;
+                }
+            }
+            final String version = roster.getVersion();
+            if (!Strings.nullToEmpty(version).equals(account.getRosterVersion())) {
+                account.setRosterVersion(version);
+                final ContentValues values = new ContentValues();
+                values.put(Account.ROSTERVERSION, version);
+                db.update(Account.TABLENAME, values, Account.UUID + "=?", new String[]{account.getUuid()});
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        for (final Map.Entry<Contact, ContentValues> entry : written.entrySet()) {
+            entry.getKey().setPersistedValues(entry.getValue());
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
-        account.setRosterVersion(roster.getVersion());
-        updateAccount(account);
         long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster (" + (written.size() - deleted) + " written, " + deleted + " deleted) in " + duration + "ms");
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
+        messageWriteQueue.flush();
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
@@ -1078,16 +1394,54 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Log.d(Config.LOGTAG, "deleted " + num + " messages for " + conversation.getJid().asBareJid() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
-    public void expireOldMessages(long timestamp) {
+    /**
+     * Deletes up to limit of the oldest messages sent before timestamp in one transaction. Callers
+     * repeat this until fewer than limit messages have been deleted, which keeps the write lock
+     * (and the work done by the delete trigger of the full text index) short.
+     */
+    public ExpiredMessages expireOldMessages(final long timestamp, final int limit) {
+        messageWriteQueue.flush();
         final String[] args = {String.valueOf(timestamp)};
-        SQLiteDatabase db = this.getReadableDatabase();
+        final String batch = "select rowid from " + Message.TABLENAME + " where " + Message.TIME_SENT + "<? order by " + Message.TIME_SENT + " limit " + limit;
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final Set<String> files = new HashSet<>();
+        final int count;
         db.beginTransaction();
-        db.delete(Message.TABLENAME, "timeSent<?", args);
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        try {
+            try (final Cursor cursor = db.rawQuery("select " + Message.RELATIVE_FILE_PATH + " from " + Message.TABLENAME + " where rowid in (" + batch + ") and " + Message.RELATIVE_FILE_PATH + " is not null", args)) {
+                while (cursor.moveToNext()) {
+                    files.add(cursor.getString(0));
+                }
+            }
+            count = db.delete(Message.TABLENAME, "rowid in (" + batch + ")", args);
+            // the same file can be attached to several messages (for example when forwarded)
+            for (final Iterator<String> iterator = files.iterator(); iterator.hasNext(); ) {
+                final String[] selectionArgs = {iterator.next()};
+                if (DatabaseUtils.longForQuery(db, "select count(*) from " + Message.TABLENAME + " where " + Message.RELATIVE_FILE_PATH + "=?", selectionArgs) > 0) {
+                    iterator.remove();
+                } else {
+                    db.delete("attachments", "path=?", selectionArgs);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return new ExpiredMessages(count, files);
+    }
+
+    public static class ExpiredMessages {
+        public final int count;
+        public final Set<String> orphanedFiles;
+
+        private ExpiredMessages(int count, Set<String> orphanedFiles) {
+            this.count = count;
+            this.orphanedFiles = orphanedFiles;
+        }
     }
 
     public MamReference getLastMessageReceived(Account account) {
+        messageWriteQueue.flush();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
@@ -1110,9 +1464,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public long getLastTimeFingerprintUsed(Account account, String fingerprint) {
-        String SQL = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
+        messageWriteQueue.flush();
         String[] args = {account.getUuid(), fingerprint};
-        Cursor cursor = getReadableDatabase().rawQuery(SQL, args);
+        Cursor cursor = getReadableDatabase().rawQuery(SELECT_LAST_TIME_FINGERPRINT_USED, args);
         long time;
         if (cursor.moveToFirst()) {
             time = cursor.getLong(0);
@@ -1229,7 +1583,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
         values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+        statementCache.insert(db, SQLiteAxolotlStore.SESSION_TABLENAME, values);
     }
 
     public void deleteSession(Account account, SignalProtocolAddress contact) {
@@ -1299,7 +1653,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         values.put(SQLiteAxolotlStore.ID, record.getId());
         values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(record.serialize(), Base64.DEFAULT));
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.PREKEY_TABLENAME, null, values);
+        statementCache.insert(db, SQLiteAxolotlStore.PREKEY_TABLENAME, values);
     }
 
     public int deletePreKey(Account account, int preKeyId) {
@@ -1667,6 +2021,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<ShortcutService.FrequentContact> getFrequentContacts(int days) {
+        messageWriteQueue.flush();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select " + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + " from " + Conversation.TABLENAME + " join " + Message.TABLENAME + " on conversations.uuid=messages.conversationUuid where messages.status!=0 and carbon==0  and conversations.mode=0 and messages.timeSent>=? group by conversations.uuid order by count(body) desc limit 4;";
         String[] whereArgs = new String[]{String.valueOf(System.currentTimeMillis() - (Config.MILLISECONDS_IN_DAY * days))};
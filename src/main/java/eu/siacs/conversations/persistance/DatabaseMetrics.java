@@ -0,0 +1,35 @@
+package eu.siacs.conversations.persistance;
+
+/**
+ * Collects how long the queries on the UI relevant paths (history paging, media browser) took
+ * since the last checkpoint, from issuing the query to having read all rows. Time spent waiting
+ * for a connection is part of that but not measured on its own, so this is an upper bound for it.
+ */
+final class DatabaseMetrics {
+
+    private long queries = 0;
+    private long totalQueryTime = 0;
+    private long maxQueryTime = 0;
+
+    synchronized void query(final long millis) {
+        ++queries;
+        totalQueryTime += millis;
+        maxQueryTime = Math.max(maxQueryTime, millis);
+    }
+
+    /** Returns a summary of the queries recorded so far and starts over. */
+    synchronized String reset() {
+        final String summary =
+                "queries="
+                        + queries
+                        + ", avg="
+                        + (queries == 0 ? 0 : totalQueryTime / queries)
+                        + "ms, max="
+                        + maxQueryTime
+                        + "ms";
+        queries = 0;
+        totalQueryTime = 0;
+        maxQueryTime = 0;
+        return summary;
+    }
+}
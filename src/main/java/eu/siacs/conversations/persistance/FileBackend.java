@@ -27,6 +27,7 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LruCache;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.StringRes;
 import androidx.core.content.FileProvider;
@@ -34,7 +35,9 @@ import androidx.exifinterface.media.ExifInterface;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -66,6 +69,7 @@ import eu.siacs.conversations.services.AttachFileToConversationRunnable;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.ui.adapter.MediaAdapter;
 import eu.siacs.conversations.ui.util.Attachment;
+import eu.siacs.conversations.utils.BitmapPool;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.FileUtils;
 import eu.siacs.conversations.utils.FileWriterException;
@@ -74,7 +78,6 @@ import eu.siacs.conversations.xmpp.pep.Avatar;
 
 public class FileBackend {
 
-    private static final Object THUMBNAIL_LOCK = new Object();
 
     private static final SimpleDateFormat IMAGE_DATE_FORMAT =
             new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
@@ -82,6 +85,8 @@ public class FileBackend {
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private final ThumbnailCache thumbnailCache;
+    private final Object attachmentLock = new Object();
 
     private static final List<String> STORAGE_TYPES;
 
@@ -101,6 +106,7 @@ public class FileBackend {
 
     public FileBackend(XmppConnectionService service) {
         this.mXmppConnectionService = service;
+        this.thumbnailCache = new ThumbnailCache(new File(service.getCacheDir(), "thumbnails"));
     }
 
     public static long getFileSize(Context context, Uri uri) {
@@ -498,8 +504,37 @@ public class FileBackend {
     }
 
     public boolean deleteFile(Message message) {
-        File file = getFile(message);
+        final File file = getFile(message);
+        // the same lock as deduplicate() so that no message is pointed at a file about to vanish
+        synchronized (attachmentLock) {
+            final String path = file.getAbsolutePath();
+            if (mXmppConnectionService.databaseBackend.countAttachmentReferences(
+                            path, message.getUuid())
+                    > 0) {
+                // other messages still use the same attachment
+                return true;
+            }
+            mXmppConnectionService.databaseBackend.removeAttachmentAt(path);
+            if (!file.delete()) {
+                return false;
+            }
+        }
+        thumbnailCache.remove(file);
+        updateMediaScanner(file);
+        return true;
+    }
+
+    /**
+     * Deletes the file of an expired message that no other message refers to. Files outside of
+     * the directories the app manages itself are left alone.
+     */
+    public boolean deleteExpiredFile(final String path) {
+        if (path.startsWith("/") && !inConversationsDirectory(mXmppConnectionService, path)) {
+            return false;
+        }
+        final File file = getFileForPath(path);
         if (file.delete()) {
+            thumbnailCache.remove(file);
             updateMediaScanner(file);
             return true;
         } else {
@@ -507,6 +542,11 @@ public class FileBackend {
         }
     }
 
+    /** Drops the cached thumbnails of a file that was deleted by someone else. */
+    public void removeThumbnails(final File file) {
+        thumbnailCache.remove(file);
+    }
+
     public DownloadableFile getFile(Message message) {
         return getFile(message, true);
     }
@@ -709,6 +749,54 @@ public class FileBackend {
         copyFileToPrivateStorage(mXmppConnectionService.getFileBackend().getFile(message), uri);
     }
 
+    /**
+     * Stores the file of a downloaded message only once per content. The first copy of a file keeps
+     * its name and is registered in the database under its SHA-256 hash; later copies with the same
+     * content are deleted and the message is pointed at the registered file instead. File names
+     * never depend on the content, and files are only shared once they are complete and decrypted
+     * and only within the directories the app manages.
+     */
+    public void deduplicate(final Message message) {
+        final String path = message.getRelativeFilePath();
+        if (!Config.DEDUPLICATE_ATTACHMENTS
+                || path == null
+                || !path.startsWith("/")
+                || message.getEncryption() == Message.ENCRYPTION_PGP
+                || message.getEncryption() == Message.ENCRYPTION_DECRYPTED
+                || !inConversationsDirectory(mXmppConnectionService, path)) {
+            return;
+        }
+        final File file = new File(path);
+        final String hash;
+        try {
+            hash = Files.asByteSource(file).hash(Hashing.sha256()).toString();
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to hash " + path, e);
+            return;
+        }
+        // deleteFile() counts references under the same lock, after the new path has been stored
+        synchronized (attachmentLock) {
+            final String canonical =
+                    mXmppConnectionService.databaseBackend.acquireAttachment(
+                            hash, path, file.length(), message.getUuid());
+            if (canonical == null || canonical.equals(path)) {
+                return;
+            }
+            message.setRelativeFilePath(canonical);
+            ignoreDeletion(file);
+            if (file.delete()) {
+                Log.d(Config.LOGTAG, "deduplicated " + path + " as " + canonical);
+                updateMediaScanner(file);
+            }
+        }
+    }
+
+    private void ignoreDeletion(final File file) {
+        synchronized (mXmppConnectionService.FILENAMES_TO_IGNORE_DELETION) {
+            mXmppConnectionService.FILENAMES_TO_IGNORE_DELETION.add(file.getAbsolutePath());
+        }
+    }
+
     private String getExtensionFromUri(final Uri uri) {
         final String[] projection = {MediaStore.MediaColumns.DATA};
         String filename = null;
@@ -949,40 +1037,41 @@ public class FileBackend {
     public Bitmap getThumbnail(Message message, int size, boolean cacheOnly) throws IOException {
         final String uuid = message.getUuid();
         final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
-        Bitmap thumbnail = cache.get(uuid);
-        if ((thumbnail == null) && (!cacheOnly)) {
-            synchronized (THUMBNAIL_LOCK) {
-                thumbnail = cache.get(uuid);
-                if (thumbnail != null) {
-                    return thumbnail;
-                }
-                DownloadableFile file = getFile(message);
-                final String mime = file.getMimeType();
-                if ("application/pdf".equals(mime)) {
-                    thumbnail = getPdfDocumentPreview(file, size);
-                } else if (mime.startsWith("video/")) {
-                    thumbnail = getVideoPreview(file, size);
-                } else {
-                    final Bitmap fullSize = getFullSizeImagePreview(file, size);
-                    if (fullSize == null) {
-                        throw new FileNotFoundException();
-                    }
-                    thumbnail = resize(fullSize, size);
-                    thumbnail = rotate(thumbnail, getRotation(file));
-                    if (mime.equals("image/gif")) {
-                        Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
-                        drawOverlay(
-                                withGifOverlay,
-                                paintOverlayBlack(withGifOverlay)
-                                        ? R.drawable.play_gif_black
-                                        : R.drawable.play_gif_white,
-                                1.0f);
-                        thumbnail.recycle();
-                        thumbnail = withGifOverlay;
-                    }
-                }
-                cache.put(uuid, thumbnail);
-            }
+        final Bitmap cached = cache.get(uuid);
+        if (cached != null || cacheOnly) {
+            return cached;
+        }
+        final DownloadableFile file = getFile(message);
+        final Bitmap thumbnail =
+                thumbnailCache.get(uuid, file, size, () -> createThumbnail(file, size));
+        cache.put(uuid, thumbnail);
+        return thumbnail;
+    }
+
+    private Bitmap createThumbnail(final DownloadableFile file, final int size)
+            throws IOException {
+        final String mime = file.getMimeType();
+        if ("application/pdf".equals(mime)) {
+            return getPdfDocumentPreview(file, size);
+        } else if (mime.startsWith("video/")) {
+            return getVideoPreview(file, size);
+        }
+        final Bitmap fullSize = getFullSizeImagePreview(file, size);
+        if (fullSize == null) {
+            throw new FileNotFoundException();
+        }
+        Bitmap thumbnail = resize(fullSize, size);
+        thumbnail = rotate(thumbnail, getRotation(file));
+        if (mime.equals("image/gif")) {
+            Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
+            drawOverlay(
+                    withGifOverlay,
+                    paintOverlayBlack(withGifOverlay)
+                            ? R.drawable.play_gif_black
+                            : R.drawable.play_gif_white,
+                    1.0f);
+            thumbnail.recycle();
+            thumbnail = withGifOverlay;
         }
         return thumbnail;
     }
@@ -1411,18 +1500,46 @@ public class FileBackend {
     }
 
     public Bitmap cropCenter(Uri image, int newHeight, int newWidth) {
+        return cropCenter(image, newHeight, newWidth, null);
+    }
+
+    /**
+     * Scales and crops the image to the given size. With a pool the image is decoded into a
+     * pooled bitmap, which is handed back afterwards, and the result is taken from the pool.
+     */
+    public Bitmap cropCenter(
+            Uri image, int newHeight, int newWidth, @Nullable final BitmapPool pool) {
         if (image == null) {
             return null;
         }
-        InputStream is = null;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = calcSampleSize(image, Math.max(newHeight, newWidth));
-            is = mXmppConnectionService.getContentResolver().openInputStream(image);
-            if (is == null) {
-                return null;
+            final BitmapFactory.Options bounds = decodeBounds(image);
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = calcSampleSize(bounds, Math.max(newHeight, newWidth));
+            Bitmap source = null;
+            if (pool != null && bounds.outWidth > 0 && bounds.outHeight > 0) {
+                final int sampledWidth =
+                        (bounds.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+                final int sampledHeight =
+                        (bounds.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+                options.inMutable = true;
+                options.inBitmap = pool.take(sampledWidth * sampledHeight * 4);
+                if (options.inBitmap != null) {
+                    try {
+                        source = decode(image, options);
+                    } catch (final IllegalArgumentException e) {
+                        // the decoder could not reuse the bitmap after all
+                        source = null;
+                    }
+                    if (source == null) {
+                        pool.put(options.inBitmap);
+                        options.inBitmap = null;
+                    }
+                }
+            }
+            if (source == null) {
+                source = decode(image, options);
             }
-            Bitmap source = BitmapFactory.decodeStream(is, null, options);
             if (source == null) {
                 return null;
             }
@@ -1437,10 +1554,15 @@ public class FileBackend {
             float top = (newHeight - scaledHeight) / 2;
 
             RectF targetRect = new RectF(left, top, left + scaledWidth, top + scaledHeight);
-            Bitmap dest = Bitmap.createBitmap(newWidth, newHeight, Bitmap.Config.ARGB_8888);
+            Bitmap dest =
+                    pool == null
+                            ? Bitmap.createBitmap(newWidth, newHeight, Bitmap.Config.ARGB_8888)
+                            : pool.get(newWidth, newHeight);
             Canvas canvas = new Canvas(dest);
             canvas.drawBitmap(source, null, targetRect, createAntiAliasingPaint());
-            if (source.isRecycled()) {
+            if (pool != null) {
+                pool.put(source);
+            } else if (source.isRecycled()) {
                 source.recycle();
             }
             return dest;
@@ -1448,8 +1570,31 @@ public class FileBackend {
             return null; // android 6.0 with revoked permissions for example
         } catch (FileNotFoundException e) {
             return null;
+        }
+    }
+
+    private BitmapFactory.Options decodeBounds(final Uri image)
+            throws FileNotFoundException, SecurityException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        final InputStream inputStream =
+                mXmppConnectionService.getContentResolver().openInputStream(image);
+        BitmapFactory.decodeStream(inputStream, null, options);
+        close(inputStream);
+        return options;
+    }
+
+    private Bitmap decode(final Uri image, final BitmapFactory.Options options)
+            throws FileNotFoundException, SecurityException {
+        final InputStream inputStream =
+                mXmppConnectionService.getContentResolver().openInputStream(image);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
         } finally {
-            close(is);
+            close(inputStream);
         }
     }
 
@@ -1647,10 +1792,14 @@ public class FileBackend {
     }
 
     public Bitmap getAvatar(String avatar, int size) {
+        return getAvatar(avatar, size, null);
+    }
+
+    public Bitmap getAvatar(String avatar, int size, @Nullable BitmapPool pool) {
         if (avatar == null) {
             return null;
         }
-        Bitmap bm = cropCenter(getAvatarUri(avatar), size, size);
+        Bitmap bm = cropCenter(getAvatarUri(avatar), size, size, pool);
         return bm;
     }
 
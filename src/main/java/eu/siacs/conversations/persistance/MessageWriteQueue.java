@@ -0,0 +1,142 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Write-behind journal for newly received messages. Inserts are collected in memory and
+ * committed together in one transaction once {@link Config#MESSAGE_WRITE_BATCH_SIZE} messages
+ * are pending or {@link Config#MESSAGE_WRITE_DELAY} milliseconds have passed, so a MAM catch-up
+ * costs one fsync per batch instead of one per message.
+ *
+ * <p>Content values are taken when the batch is committed, which means that updates to a
+ * message that is still pending are folded into its insert. Everything that reads or writes the
+ * messages table by other means has to call {@link #flush()} first; a caller that needs a
+ * message to be durable (for example before acknowledging the stanza it came in) calls {@link
+ * #commit()} instead, which fails if the messages could not be written.
+ */
+class MessageWriteQueue {
+
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final DatabaseBackend databaseBackend;
+    private final Object flushLock = new Object();
+    private LinkedHashMap<String, Message> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush = null;
+
+    MessageWriteQueue(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    void insert(final Message message) {
+        synchronized (this) {
+            pending.put(message.getUuid(), message);
+            if (pending.size() >= Config.MESSAGE_WRITE_BATCH_SIZE) {
+                cancelScheduledFlush();
+                scheduledFlush = SCHEDULED_EXECUTOR_SERVICE.schedule(this::flush, 0, TimeUnit.MILLISECONDS);
+            } else if (scheduledFlush == null) {
+                scheduledFlush =
+                        SCHEDULED_EXECUTOR_SERVICE.schedule(
+                                this::flush, Config.MESSAGE_WRITE_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return true if the message has not been written yet. Its current state will be written
+     *     with the pending insert and the update does not need to be executed.
+     */
+    synchronized boolean isPending(final Message message) {
+        return pending.get(message.getUuid()) == message;
+    }
+
+    /**
+     * Commits all pending inserts. If the transaction fails the messages stay pending and the
+     * error is only logged; the next flush retries. Use {@link #commit()} where the messages have
+     * to be durable.
+     */
+    void flush() {
+        try {
+            write();
+        } catch (final RuntimeException e) {
+            Log.e(Config.LOGTAG, "unable to write pending messages", e);
+        }
+    }
+
+    /**
+     * Commits all pending inserts and returns once they are durable. If the transaction fails the
+     * messages stay pending and an exception is thrown, so callers never treat them as written.
+     */
+    void commit() throws IOException {
+        try {
+            write();
+        } catch (final RuntimeException e) {
+            throw new IOException("unable to write pending messages", e);
+        }
+    }
+
+    private void write() {
+        synchronized (flushLock) {
+            final List<Message> batch;
+            synchronized (this) {
+                cancelScheduledFlush();
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pending.values());
+                pending = new LinkedHashMap<>();
+            }
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            try {
+                final SQLiteDatabase db = databaseBackend.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (final Message message : batch) {
+                        databaseBackend.insertMessage(db, message);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (final RuntimeException e) {
+                restore(batch);
+                throw e;
+            }
+            if (batch.size() > 1) {
+                Log.d(Config.LOGTAG, "wrote " + batch.size() + " messages in " + stopwatch.stop());
+            }
+        }
+    }
+
+    /** Puts a failed batch back in front of the messages that were queued in the meantime. */
+    private synchronized void restore(final List<Message> batch) {
+        final LinkedHashMap<String, Message> restored = new LinkedHashMap<>();
+        for (final Message message : batch) {
+            restored.put(message.getUuid(), message);
+        }
+        restored.putAll(pending);
+        pending = restored;
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+}
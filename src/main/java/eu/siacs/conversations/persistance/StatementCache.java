@@ -0,0 +1,157 @@
+package eu.siacs.conversations.persistance;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Compiled INSERT and UPDATE statements for the tables that are written most often. Unlike
+ * {@link SQLiteDatabase#insert(String, String, ContentValues)} the SQL is not rebuilt on every
+ * call and arguments are bound by position.
+ *
+ * <p>A statement is cached per table, where clause and number of columns. Passing values with a
+ * different set of columns of the same size recompiles it. Statements are taken out of the cache
+ * while they execute so that a thread waiting for the database connection (for example because
+ * another thread is inside a transaction) never holds the cache lock.
+ */
+final class StatementCache {
+
+    private final Map<String, CachedStatement> statements = new HashMap<>();
+
+    /** Behaves like {@link SQLiteDatabase#insert(String, String, ContentValues)}. */
+    long insert(final SQLiteDatabase db, final String table, final ContentValues values) {
+        final String key = "insert:" + table + ":" + values.size();
+        CachedStatement statement = checkout(key, values);
+        try {
+            if (statement == null) {
+                statement = compileInsert(db, table, values);
+            }
+            statement.bind(values, null);
+            return statement.statement.executeInsert();
+        } catch (final SQLException e) {
+            Log.e(Config.LOGTAG, "error inserting into " + table, e);
+            return -1;
+        } finally {
+            if (statement != null) {
+                checkin(key, statement);
+            }
+        }
+    }
+
+    /**
+     * Behaves like {@link SQLiteDatabase#update(String, ContentValues, String, String[])} with a
+     * where clause of the form {@code column=?}.
+     */
+    int update(
+            final SQLiteDatabase db,
+            final String table,
+            final ContentValues values,
+            final String column,
+            final String arg) {
+        final String key = "update:" + table + ":" + column + ":" + values.size();
+        CachedStatement statement = checkout(key, values);
+        try {
+            if (statement == null) {
+                statement = compileUpdate(db, table, values, column);
+            }
+            statement.bind(values, arg);
+            return statement.statement.executeUpdateDelete();
+        } finally {
+            if (statement != null) {
+                checkin(key, statement);
+            }
+        }
+    }
+
+    private synchronized CachedStatement checkout(final String key, final ContentValues values) {
+        final CachedStatement statement = statements.remove(key);
+        if (statement == null) {
+            return null;
+        }
+        if (statement.matches(values)) {
+            return statement;
+        }
+        statement.statement.close();
+        return null;
+    }
+
+    private synchronized void checkin(final String key, final CachedStatement statement) {
+        statement.statement.clearBindings();
+        // another thread might have compiled the same statement in the meantime
+        final CachedStatement previous = statements.put(key, statement);
+        if (previous != null) {
+            previous.statement.close();
+        }
+    }
+
+    private static CachedStatement compileInsert(
+            final SQLiteDatabase db, final String table, final ContentValues values) {
+        final String[] columns = values.keySet().toArray(new String[0]);
+        final StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(table).append('(');
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        return new CachedStatement(db.compileStatement(sql.toString()), columns);
+    }
+
+    private static CachedStatement compileUpdate(
+            final SQLiteDatabase db,
+            final String table,
+            final ContentValues values,
+            final String column) {
+        final String[] columns = values.keySet().toArray(new String[0]);
+        final StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(table).append(" SET ");
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]).append("=?");
+        }
+        sql.append(" WHERE ").append(column).append("=?");
+        return new CachedStatement(db.compileStatement(sql.toString()), columns);
+    }
+
+    private static final class CachedStatement {
+
+        private final SQLiteStatement statement;
+        private final String[] columns;
+
+        private CachedStatement(final SQLiteStatement statement, final String[] columns) {
+            this.statement = statement;
+            this.columns = columns;
+        }
+
+        private boolean matches(final ContentValues values) {
+            if (values.size() != columns.length) {
+                return false;
+            }
+            for (final String column : columns) {
+                if (!values.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void bind(final ContentValues values, final String whereArg) {
+            for (int i = 0; i < columns.length; ++i) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            if (whereArg != null) {
+                statement.bindString(columns.length + 1, whereArg);
+            }
+        }
+    }
+}
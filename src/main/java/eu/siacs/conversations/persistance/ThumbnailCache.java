@@ -0,0 +1,210 @@
+package eu.siacs.conversations.persistance;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Second tier behind the in-memory bitmap cache. Thumbnails are stored pre-scaled on disk, keyed
+ * by path, size and modification time of the source file, so they survive process restarts and
+ * evictions from memory. The directory is trimmed to {@link Config#THUMBNAIL_DISK_CACHE_SIZE}
+ * bytes, removing the least recently used thumbnails first. The names of the thumbnails start with
+ * the hash of the path, so those of a deleted file can be found without knowing its sizes.
+ *
+ * <p>Instead of one global lock there is at most one generation in flight per key; concurrent
+ * requests for the same thumbnail wait for and share its result while other thumbnails are
+ * generated in parallel.
+ */
+final class ThumbnailCache {
+
+    interface Generator {
+        Bitmap generate() throws IOException;
+    }
+
+    private static final String EXTENSION = ".webp";
+
+    // leaves out the temporary files of thumbnails that are being stored
+    private static final FileFilter THUMBNAILS = file -> file.getName().endsWith(EXTENSION);
+
+    private final File directory;
+    private final Map<String, SettableFuture<Bitmap>> inFlight = new HashMap<>();
+    private long totalBytes = -1;
+
+    ThumbnailCache(final File directory) {
+        this.directory = directory;
+    }
+
+    Bitmap get(final String key, final File file, final int size, final Generator generator)
+            throws IOException {
+        final SettableFuture<Bitmap> future;
+        final SettableFuture<Bitmap> running;
+        synchronized (inFlight) {
+            running = inFlight.get(key);
+            if (running == null) {
+                future = SettableFuture.create();
+                inFlight.put(key, future);
+            } else {
+                future = null;
+            }
+        }
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            final Bitmap bitmap = load(file, size, generator);
+            future.set(bitmap);
+            return bitmap;
+        } catch (final Throwable throwable) {
+            future.setException(throwable);
+            throw throwable;
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(key);
+            }
+        }
+    }
+
+    private Bitmap load(final File file, final int size, final Generator generator)
+            throws IOException {
+        final File cached = getCacheFile(file, size);
+        if (cached.exists()) {
+            final Bitmap bitmap = BitmapFactory.decodeFile(cached.getAbsolutePath());
+            if (bitmap != null) {
+                if (!cached.setLastModified(System.currentTimeMillis())) {
+                    Log.d(Config.LOGTAG, "unable to touch " + cached.getAbsolutePath());
+                }
+                return bitmap;
+            }
+        }
+        final Bitmap bitmap = generator.generate();
+        try {
+            store(cached, bitmap);
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to store thumbnail for " + file.getAbsolutePath(), e);
+        }
+        return bitmap;
+    }
+
+    /** Removes the thumbnails of all sizes of a file that has been or is about to be deleted. */
+    void remove(final File file) {
+        final String prefix = getPrefix(file);
+        final File[] files = directory.listFiles(cached -> cached.getName().startsWith(prefix));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        long bytes = 0;
+        for (final File cached : files) {
+            final long length = cached.length();
+            if (cached.delete()) {
+                bytes += length;
+            }
+        }
+        removed(bytes);
+    }
+
+    private File getCacheFile(final File file, final int size) {
+        return new File(
+                directory, getPrefix(file) + size + '-' + file.lastModified() + EXTENSION);
+    }
+
+    private static String getPrefix(final File file) {
+        return Hashing.sha256().hashString(file.getAbsolutePath(), Charsets.UTF_8) + "-";
+    }
+
+    private void store(final File cached, final Bitmap bitmap) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("unable to create " + directory.getAbsolutePath());
+        }
+        final File temporary = File.createTempFile("thumbnail", ".tmp", directory);
+        try (final FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.WEBP, 80, outputStream)) {
+                throw new IOException("unable to compress thumbnail");
+            }
+        }
+        if (!temporary.renameTo(cached)) {
+            temporary.delete();
+            throw new IOException("unable to rename " + temporary.getAbsolutePath());
+        }
+        added(cached.length());
+    }
+
+    private synchronized void added(final long bytes) {
+        if (totalBytes < 0) {
+            totalBytes = 0;
+            final File[] files = directory.listFiles(THUMBNAILS);
+            for (final File file : files == null ? new File[0] : files) {
+                totalBytes += file.length();
+            }
+        } else {
+            totalBytes += bytes;
+        }
+        if (totalBytes > Config.THUMBNAIL_DISK_CACHE_SIZE) {
+            trim();
+        }
+    }
+
+    private synchronized void removed(final long bytes) {
+        if (totalBytes >= 0) {
+            totalBytes = Math.max(0, totalBytes - bytes);
+        }
+    }
+
+    private void trim() {
+        final File[] files = directory.listFiles(THUMBNAILS);
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            // read once; the value might change while sorting
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        final long target = Config.THUMBNAIL_DISK_CACHE_SIZE * 3 / 4;
+        int deleted = 0;
+        for (final int i : order) {
+            if (totalBytes <= target) {
+                break;
+            }
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+                ++deleted;
+            }
+        }
+        Log.d(Config.LOGTAG, "trimmed thumbnail cache by " + deleted + " files to " + totalBytes + " bytes");
+    }
+
+    private static Bitmap await(final SettableFuture<Bitmap> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import androidx.core.content.ContextCompat;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.io.CipherInputStream;
 import org.bouncycastle.crypto.io.CipherOutputStream;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
@@ -115,6 +116,30 @@ public class AbstractConnectionManager {
         }
     }
 
+    /**
+     * Decrypts an aesgcm file in one pass. The authentication tag at the end of the input is
+     * checked once everything else has been processed; if it does not match, the output is
+     * deleted and an {@link InvalidCipherTextIOException} is thrown.
+     */
+    public static void decrypt(final DownloadableFile input, final DownloadableFile output)
+            throws IOException {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(false, new AEADParameters(new KeyParameter(input.getKey()), 128, input.getIv()));
+        try (final InputStream is = new FileInputStream(input);
+                final OutputStream os = new CipherOutputStream(new FileOutputStream(output), cipher)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+            }
+        } catch (final IOException e) {
+            if (!output.delete()) {
+                Log.d(Config.LOGTAG, "unable to delete " + output.getAbsolutePath());
+            }
+            throw e;
+        }
+    }
+
     public XmppConnectionService getXmppConnectionService() {
         return this.mXmppConnectionService;
     }
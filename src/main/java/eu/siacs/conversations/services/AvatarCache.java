@@ -0,0 +1,90 @@
+package eu.siacs.conversations.services;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * Rendered avatars, kept apart from the bitmap cache that holds message thumbnails so that
+ * opening a chat full of images does not push the avatars of the conversation list out. Contact,
+ * conversation and account avatars have budgets of their own; together they use 1/16 of the heap.
+ */
+final class AvatarCache {
+
+    enum Kind {
+        CONTACT(8),
+        CONVERSATION(6),
+        ACCOUNT(2);
+
+        // in 1/256 of the heap
+        private final int share;
+
+        Kind(final int share) {
+            this.share = share;
+        }
+    }
+
+    private final Tier[] tiers;
+
+    AvatarCache() {
+        final long maxMemory = Runtime.getRuntime().maxMemory() / 1024;
+        final Kind[] kinds = Kind.values();
+        tiers = new Tier[kinds.length];
+        for (final Kind kind : kinds) {
+            tiers[kind.ordinal()] = new Tier((int) (maxMemory * kind.share / 256));
+        }
+    }
+
+    Bitmap get(final Kind kind, final String key) {
+        return tiers[kind.ordinal()].get(key);
+    }
+
+    void put(final Kind kind, final String key, final Bitmap bitmap) {
+        tiers[kind.ordinal()].put(key, bitmap);
+    }
+
+    void remove(final Kind kind, final String key) {
+        tiers[kind.ordinal()].remove(key);
+    }
+
+    void evictAll() {
+        for (final Tier tier : tiers) {
+            tier.evictAll();
+        }
+    }
+
+    /** Hits, misses, evictions and size in KiB per kind of avatar. */
+    String getMetrics() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Kind kind : Kind.values()) {
+            final Tier tier = tiers[kind.ordinal()];
+            builder.append(builder.length() == 0 ? "" : ", ")
+                    .append(kind.name().toLowerCase(Locale.ENGLISH))
+                    .append("={hits=")
+                    .append(tier.hitCount())
+                    .append(", misses=")
+                    .append(tier.missCount())
+                    .append(", evictions=")
+                    .append(tier.evictionCount())
+                    .append(", size=")
+                    .append(tier.size())
+                    .append('/')
+                    .append(tier.maxSize())
+                    .append("KiB}");
+        }
+        return builder.toString();
+    }
+
+    private static final class Tier extends LruCache<String, Bitmap> {
+
+        private Tier(final int maxSize) {
+            super(Math.max(1, maxSize));
+        }
+
+        @Override
+        protected int sizeOf(final String key, final Bitmap bitmap) {
+            return bitmap.getByteCount() / 1024;
+        }
+    }
+}
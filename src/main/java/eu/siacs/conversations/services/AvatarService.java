@@ -15,7 +15,6 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.LruCache;
 
 import androidx.annotation.ColorInt;
 import androidx.annotation.Nullable;
@@ -39,6 +38,7 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.MucOptions;
 import eu.siacs.conversations.entities.RawBlockable;
 import eu.siacs.conversations.entities.Room;
+import eu.siacs.conversations.utils.BitmapPool;
 import eu.siacs.conversations.utils.UIHelper;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.OnAdvancedStreamFeaturesLoaded;
@@ -63,11 +63,21 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	final private HashMap<String, Set<String>> conversationDependentKeys = new HashMap<>();
 
 	protected XmppConnectionService mXmppConnectionService = null;
+	private final AvatarCache cache = new AvatarCache();
+	private final BitmapPool pool = new BitmapPool(Config.AVATAR_BITMAP_POOL_SIZE);
 
 	AvatarService(XmppConnectionService service) {
 		this.mXmppConnectionService = service;
 	}
 
+	public void evictAll() {
+		cache.evictAll();
+	}
+
+	public String getCacheMetrics() {
+		return cache.getMetrics();
+	}
+
 	public static int getSystemUiAvatarSize(final Context context) {
 		return (int) (SYSTEM_UI_AVATAR_SIZE * context.getResources().getDisplayMetrics().density);
 	}
@@ -104,23 +114,23 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			return get(contact.getAccount(), size, cachedOnly);
 		}
 		final String KEY = key(contact, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = cache.get(AvatarCache.Kind.CONTACT, KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
 		if (contact.getAvatarFilename() != null && QuickConversationsService.isQuicksy()) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
+			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size, pool);
 		}
 		if (avatar == null && contact.getProfilePhoto() != null) {
 			avatar = mXmppConnectionService.getFileBackend().cropCenterSquare(Uri.parse(contact.getProfilePhoto()), size);
 		}
 		if (avatar == null && contact.getAvatarFilename() != null) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size);
+			avatar = mXmppConnectionService.getFileBackend().getAvatar(contact.getAvatarFilename(), size, pool);
 		}
 		if (avatar == null) {
 			avatar = get(contact.getDisplayName(), contact.getJid().asBareJid().toString(), size, false);
 		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		cache.put(AvatarCache.Kind.CONTACT, KEY, avatar);
 		return avatar;
 	}
 
@@ -202,12 +212,12 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	private Bitmap getImpl(final MucOptions.User user, final int size, boolean cachedOnly) {
 		final String KEY = key(user, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = cache.get(AvatarCache.Kind.CONTACT, KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
 		if (user.getAvatar() != null) {
-			avatar = mXmppConnectionService.getFileBackend().getAvatar(user.getAvatar(), size);
+			avatar = mXmppConnectionService.getFileBackend().getAvatar(user.getAvatar(), size, pool);
 		}
 		if (avatar == null) {
 			Contact contact = user.getContact();
@@ -218,14 +228,14 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				avatar = get(user.getName(), seed, size, false);
 			}
 		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		cache.put(AvatarCache.Kind.CONTACT, KEY, avatar);
 		return avatar;
 	}
 
 	public void clear(Contact contact) {
 		synchronized (this.sizes) {
 			for (final Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(contact, size));
+				cache.remove(AvatarCache.Kind.CONTACT, key(contact, size));
 			}
 		}
 		for (Conversation conversation : mXmppConnectionService.findAllConferencesWith(contact)) {
@@ -316,9 +326,8 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				if (keys == null) {
 					return;
 				}
-				LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache();
 				for (String key : keys) {
-					cache.remove(key);
+					cache.remove(AvatarCache.Kind.CONVERSATION, key);
 				}
 				keys.clear();
 			}
@@ -327,12 +336,12 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	private Bitmap get(MucOptions mucOptions, int size, boolean cachedOnly) {
 		final String KEY = key(mucOptions, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = cache.get(AvatarCache.Kind.CONVERSATION, KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
 
-		bitmap = mXmppConnectionService.getFileBackend().getAvatar(mucOptions.getAvatar(), size);
+		bitmap = mXmppConnectionService.getFileBackend().getAvatar(mucOptions.getAvatar(), size, pool);
 
 		if (bitmap == null) {
 			Conversation c = mucOptions.getConversation();
@@ -348,19 +357,19 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			}
 		}
 
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		cache.put(AvatarCache.Kind.CONVERSATION, KEY, bitmap);
 
 		return bitmap;
 	}
 
 	private Bitmap get(List<MucOptions.User> users, int size, boolean cachedOnly) {
 		final String KEY = key(users, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = cache.get(AvatarCache.Kind.CONVERSATION, KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
 		bitmap = getImpl(users, size);
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		cache.put(AvatarCache.Kind.CONVERSATION, KEY, bitmap);
 		return bitmap;
 	}
 
@@ -404,7 +413,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		}
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(options, size));
+				cache.remove(AvatarCache.Kind.CONVERSATION, key(options, size));
 			}
 		}
 	}
@@ -449,11 +458,11 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	public Bitmap get(Account account, int size, boolean cachedOnly) {
 		final String KEY = key(account, size);
-		Bitmap avatar = mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = cache.get(AvatarCache.Kind.ACCOUNT, KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
-		avatar = mXmppConnectionService.getFileBackend().getAvatar(account.getAvatar(), size);
+		avatar = mXmppConnectionService.getFileBackend().getAvatar(account.getAvatar(), size, pool);
 		if (avatar == null) {
 			final String displayName = account.getDisplayName();
 			final String jid = account.getJid().asBareJid().toEscapedString();
@@ -463,7 +472,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				avatar = get(jid, null, size, false);
 			}
 		}
-		mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		cache.put(AvatarCache.Kind.ACCOUNT, KEY, avatar);
 		return avatar;
 	}
 
@@ -501,7 +510,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	public void clear(Account account) {
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(account, size));
+				cache.remove(AvatarCache.Kind.ACCOUNT, key(account, size));
 			}
 		}
 	}
@@ -509,7 +518,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	public void clear(MucOptions.User user) {
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(user, size));
+				cache.remove(AvatarCache.Kind.CONTACT, key(user, size));
 			}
 		}
 	}
@@ -528,12 +537,12 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	public Bitmap get(final String name, String seed, final int size, boolean cachedOnly) {
 		final String KEY = key(seed == null ? name : name+"\0"+seed, size);
-		Bitmap bitmap = mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = cache.get(AvatarCache.Kind.CONTACT, KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
 		bitmap = getImpl(name, seed, size);
-		mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		cache.put(AvatarCache.Kind.CONTACT, KEY, bitmap);
 		return bitmap;
 	}
 
@@ -641,9 +650,11 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	private boolean drawTile(Canvas canvas, Uri uri, int left, int top, int right, int bottom) {
 		if (uri != null) {
 			Bitmap bitmap = mXmppConnectionService.getFileBackend()
-					.cropCenter(uri, bottom - top, right - left);
+					.cropCenter(uri, bottom - top, right - left, pool);
 			if (bitmap != null) {
 				drawTile(canvas, bitmap, left, top, right, bottom);
+				// only drawn onto the composed avatar; nothing else holds a reference
+				pool.put(bitmap);
 				return true;
 			}
 		}
@@ -0,0 +1,100 @@
+package eu.siacs.conversations.services;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Describes what changed in a single conversation so that listeners can update their views
+ * incrementally instead of reloading every message.
+ */
+public final class ConversationChange {
+
+    public enum Type {
+        /** new messages have been added to the end of the conversation */
+        MESSAGE_APPENDED,
+        /** the delivery status (or error) of existing messages changed */
+        MESSAGE_STATUS_CHANGED,
+        /** body, file or other content of existing messages changed */
+        MESSAGE_EDITED,
+        /** older messages have been inserted at the beginning of the conversation */
+        RANGE_PREPENDED
+    }
+
+    private final Type type;
+    private final Conversation conversation;
+    private final List<Message> messages;
+
+    private ConversationChange(
+            final Type type, final Conversation conversation, final List<Message> messages) {
+        this.type = type;
+        this.conversation = conversation;
+        this.messages = messages;
+    }
+
+    /**
+     * Returns null if the message does not belong to a regular conversation (for example stubs
+     * created by the message search), in which case only a full update makes sense.
+     */
+    private static ConversationChange of(final Type type, final Message message) {
+        if (message.getConversation() instanceof Conversation) {
+            return new ConversationChange(
+                    type, (Conversation) message.getConversation(), ImmutableList.of(message));
+        }
+        return null;
+    }
+
+    public static ConversationChange messageAppended(final Message message) {
+        return of(Type.MESSAGE_APPENDED, message);
+    }
+
+    public static ConversationChange statusChanged(final Message message) {
+        return of(Type.MESSAGE_STATUS_CHANGED, message);
+    }
+
+    public static ConversationChange messageEdited(final Message message) {
+        return of(Type.MESSAGE_EDITED, message);
+    }
+
+    public static ConversationChange rangePrepended(
+            final Conversation conversation, final List<Message> messages) {
+        return new ConversationChange(
+                Type.RANGE_PREPENDED, conversation, ImmutableList.copyOf(messages));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Whether the change only affects messages that are already displayed. Changes that add
+     * messages shift the positions of all rows.
+     */
+    public boolean isInPlace() {
+        return type == Type.MESSAGE_STATUS_CHANGED || type == Type.MESSAGE_EDITED;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("type", type)
+                .add("conversation", conversation.getJid().asBareJid())
+                .add("messages", messages.size())
+                .toString();
+    }
+}
@@ -0,0 +1,87 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import eu.siacs.conversations.entities.Conversation;
+
+/**
+ * Restores the most recent page of messages for every conversation at startup. Several worker
+ * threads take conversations from a shared queue in the order they were handed in. A
+ * conversation the user opens while the restore is still running jumps to the front of the
+ * queue.
+ */
+class ConversationRestoreQueue {
+
+    private final LinkedBlockingDeque<Conversation> queue;
+    private final Set<Conversation> claimed =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<Conversation> prioritized =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Restorer restorer;
+    private volatile long firstRestored = 0;
+
+    ConversationRestoreQueue(final List<Conversation> conversations, final Restorer restorer) {
+        this.queue = new LinkedBlockingDeque<>(conversations);
+        this.restorer = restorer;
+    }
+
+    /**
+     * Moves the conversation to the front of the queue. Has no effect if the conversation is
+     * already being restored or has been restored.
+     */
+    void prioritize(final Conversation conversation) {
+        if (claimed.contains(conversation)) {
+            return;
+        }
+        prioritized.add(conversation);
+        // the conversation may now be in the queue twice; the first worker to claim it wins
+        queue.offerFirst(conversation);
+    }
+
+    /** Restores all conversations using the calling thread plus threads - 1 additional ones. */
+    void run(final int threads) throws InterruptedException {
+        final List<Thread> workers = new ArrayList<>();
+        for (int i = 1; i < threads; ++i) {
+            final Thread worker = new Thread(this::work, "RestoreMessages-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        work();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /** Time (elapsed realtime) at which the first conversation finished restoring. */
+    long getFirstRestored() {
+        return firstRestored;
+    }
+
+    int size() {
+        return claimed.size();
+    }
+
+    private void work() {
+        Conversation conversation;
+        while ((conversation = queue.pollFirst()) != null) {
+            if (!claimed.add(conversation)) {
+                continue;
+            }
+            restorer.restore(conversation, prioritized.contains(conversation));
+            if (firstRestored == 0) {
+                firstRestored = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    interface Restorer {
+        void restore(Conversation conversation, boolean prioritized);
+    }
+}
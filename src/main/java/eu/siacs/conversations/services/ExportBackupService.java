@@ -17,13 +17,14 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import com.google.common.base.CharMatcher;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.primitives.Ints;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
@@ -32,14 +33,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -50,18 +46,17 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.BackupFrames;
+import eu.siacs.conversations.utils.BackupRows;
 import eu.siacs.conversations.utils.Compatibility;
 
 public class ExportBackupService extends Service {
 
-    public static final String KEYTYPE = "AES";
-    public static final String CIPHERMODE = "AES/GCM/NoPadding";
-    public static final String PROVIDER = "BC";
 
     public static final String MIME_TYPE = "application/vnd.conversations.backup";
 
     private static final int NOTIFICATION_ID = 19;
-    private static final int PAGE_SIZE = 20;
+    private static final int MESSAGE_PAGE_SIZE = 1000;
     private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
     private DatabaseBackend mDatabaseBackend;
     private List<Account> mAccounts;
@@ -91,54 +86,59 @@ public class ExportBackupService extends Service {
         return Arrays.asList(openIntent, amazeIntent, systemFallBack);
     }
 
-    private static void accountExport(final SQLiteDatabase db, final String uuid, final PrintWriter writer) {
-        final StringBuilder builder = new StringBuilder();
-        final Cursor accountCursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null);
-        while (accountCursor != null && accountCursor.moveToNext()) {
-            builder.append("INSERT INTO ").append(Account.TABLENAME).append("(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
+    private static void accountExport(final SQLiteDatabase db, final String uuid, final BackupRows.Writer writer) throws IOException {
+        try (final Cursor cursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null)) {
+            final String[] columns = cursor.getColumnNames();
+            writer.table(Account.TABLENAME, columns);
+            while (cursor.moveToNext()) {
+                final Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; ++i) {
+                    if (Account.ROSTERVERSION.equals(columns[i])) {
+                        values[i] = null;
+                    } else if (Account.OPTIONS.equals(columns[i]) && cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                        values[i] = cursor.getLong(i) | 1 << Account.OPTION_DISABLED;
+                    } else {
+                        values[i] = getValue(cursor, i);
+                    }
                 }
-                builder.append(accountCursor.getColumnName(i));
+                writer.row(values);
             }
-            builder.append(") VALUES(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                final String value = accountCursor.getString(i);
-                if (value == null || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                    builder.append("NULL");
-                } else if (Account.OPTIONS.equals(accountCursor.getColumnName(i)) && value.matches("\\d+")) {
-                    int intValue = Integer.parseInt(value);
-                    intValue |= 1 << Account.OPTION_DISABLED;
-                    builder.append(intValue);
-                } else {
-                    appendEscapedSQLString(builder, value);
-                }
-            }
-            builder.append(")");
-            builder.append(';');
-            builder.append('\n');
         }
-        if (accountCursor != null) {
-            accountCursor.close();
-        }
-        writer.append(builder.toString());
     }
 
-    private static void appendEscapedSQLString(final StringBuilder sb, final String sqlString) {
-        DatabaseUtils.appendEscapedSQLString(sb, CharMatcher.is('\u0000').removeFrom(sqlString));
+    private static Object getValue(final Cursor cursor, final int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(index);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(index);
+            default:
+                return cursor.getString(index);
+        }
     }
 
-    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, PrintWriter writer) {
-        final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null);
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(table, cursor, PAGE_SIZE));
-        }
-        if (cursor != null) {
-            cursor.close();
+    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, BackupRows.Writer writer) throws IOException {
+        try (final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null)) {
+            final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table);
+            final List<String> columns = new ArrayList<>();
+            final List<Integer> indexes = new ArrayList<>();
+            for (int i = 0; i < cursor.getColumnCount(); ++i) {
+                final String name = cursor.getColumnName(i);
+                if (identities && SQLiteAxolotlStore.TRUSTED.equals(name)) {
+                    continue;
+                }
+                columns.add(name);
+                indexes.add(i);
+            }
+            writer.table(table, columns.toArray(new String[0]));
+            final int[] columnIndexes = Ints.toArray(indexes);
+            while (cursor.moveToNext()) {
+                writer.row(cursor, columnIndexes);
+            }
         }
     }
 
@@ -152,67 +152,6 @@ public class ExportBackupService extends Service {
         return factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 1024, 128)).getEncoded();
     }
 
-    private static String cursorToString(final String table, final Cursor cursor, final int max) {
-        return cursorToString(table, cursor, max, false);
-    }
-
-    private static String cursorToString(final String table, final Cursor cursor, int max, boolean ignore) {
-        final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table);
-        StringBuilder builder = new StringBuilder();
-        builder.append("INSERT ");
-        if (ignore) {
-            builder.append("OR IGNORE ");
-        }
-        builder.append("INTO ").append(table).append("(");
-        int skipColumn = -1;
-        for (int i = 0; i < cursor.getColumnCount(); ++i) {
-            final String name = cursor.getColumnName(i);
-            if (identities && SQLiteAxolotlStore.TRUSTED.equals(name)) {
-                skipColumn = i;
-                continue;
-            }
-            if (i != 0) {
-                builder.append(',');
-            }
-            builder.append(name);
-        }
-        builder.append(") VALUES");
-        for (int i = 0; i < max; ++i) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            appendValues(cursor, builder, skipColumn);
-            if (i < max - 1 && !cursor.moveToNext()) {
-                break;
-            }
-        }
-        builder.append(';');
-        builder.append('\n');
-        return builder.toString();
-    }
-
-    private static void appendValues(final Cursor cursor, final StringBuilder builder, final int skipColumn) {
-        builder.append("(");
-        for (int i = 0; i < cursor.getColumnCount(); ++i) {
-            if (i == skipColumn) {
-                continue;
-            }
-            if (i != 0) {
-                builder.append(',');
-            }
-            final String value = cursor.getString(i);
-            if (value == null) {
-                builder.append("NULL");
-            } else if (value.matches("[0-9]+")) {
-                builder.append(value);
-            } else {
-                appendEscapedSQLString(builder, value);
-            }
-        }
-        builder.append(")");
-
-    }
-
     @Override
     public void onCreate() {
         mDatabaseBackend = DatabaseBackend.getInstance(getBaseContext());
@@ -248,28 +187,46 @@ public class ExportBackupService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void messageExport(SQLiteDatabase db, String uuid, PrintWriter writer, Progress progress) {
-        Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid});
-        int size = cursor != null ? cursor.getCount() : 0;
+    /**
+     * Exports the messages of an account in pages of {@link #MESSAGE_PAGE_SIZE} rows. Paging by
+     * rowid keeps every query cheap and means no cursor window ever has to hold the entire history.
+     */
+    private void messageExport(final SQLiteDatabase db, final String uuid, final BackupRows.Writer writer, final Progress progress) throws IOException {
+        final String[] args = {uuid};
+        final long size = DatabaseUtils.longForQuery(db, "select count(messages.rowid) from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", args);
         Log.d(Config.LOGTAG, "exporting " + size + " messages for account " + uuid);
-        int i = 0;
+        long rowId = 0;
+        long i = 0;
         int p = 0;
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(Message.TABLENAME, cursor, PAGE_SIZE, false));
-            if (i + PAGE_SIZE > size) {
-                i = size;
-            } else {
-                i += PAGE_SIZE;
+        boolean first = true;
+        while (true) {
+            final String[] pageArgs = {uuid, String.valueOf(rowId)};
+            try (final Cursor cursor = db.rawQuery("select messages.rowid,messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=? and messages.rowid>? order by messages.rowid limit " + MESSAGE_PAGE_SIZE, pageArgs)) {
+                final int[] indexes = new int[cursor.getColumnCount() - 1];
+                for (int c = 0; c < indexes.length; ++c) {
+                    indexes[c] = c + 1;
+                }
+                if (first) {
+                    writer.table(Message.TABLENAME, Arrays.copyOfRange(cursor.getColumnNames(), 1, cursor.getColumnCount()));
+                    first = false;
+                }
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    rowId = cursor.getLong(0);
+                    writer.row(cursor, indexes);
+                    ++count;
+                }
+                if (count == 0) {
+                    break;
+                }
+                i += count;
             }
-            final int percentage = i * 100 / size;
+            final int percentage = (int) (i * 100 / Math.max(size, 1));
             if (p < percentage) {
                 p = percentage;
                 notificationManager.notify(NOTIFICATION_ID, progress.build(p));
             }
         }
-        if (cursor != null) {
-            cursor.close();
-        }
     }
 
     private List<File> export() throws Exception {
@@ -294,7 +251,7 @@ public class ExportBackupService extends Service {
             final byte[] salt = new byte[16];
             secureRandom.nextBytes(IV);
             secureRandom.nextBytes(salt);
-            final BackupFileHeader backupFileHeader = new BackupFileHeader(getString(R.string.app_name), account.getJid(), System.currentTimeMillis(), IV, salt);
+            final BackupFileHeader backupFileHeader = new BackupFileHeader(BackupFileHeader.VERSION_FRAMES, getString(R.string.app_name), account.getJid(), System.currentTimeMillis(), IV, salt);
             final Progress progress = new Progress(mBuilder, max, count);
             final File file = new File(FileBackend.getBackupDirectory(this), account.getJid().asBareJid().toEscapedString() + ".ceb");
             files.add(file);
@@ -302,30 +259,30 @@ public class ExportBackupService extends Service {
             if (directory != null && directory.mkdirs()) {
                 Log.d(Config.LOGTAG, "created backup directory " + directory.getAbsolutePath());
             }
+            final Stopwatch stopwatch = Stopwatch.createStarted();
             final FileOutputStream fileOutputStream = new FileOutputStream(file);
             final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
             backupFileHeader.write(dataOutputStream);
             dataOutputStream.flush();
 
-            final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
             final byte[] key = getKey(password, salt);
-            SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-            IvParameterSpec ivSpec = new IvParameterSpec(IV);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(fileOutputStream, cipher);
-
-            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-            PrintWriter writer = new PrintWriter(gzipOutputStream);
-            SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
-            final String uuid = account.getUuid();
-            accountExport(db, uuid, writer);
-            simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
-            messageExport(db, uuid, writer, progress);
-            for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-                simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+            final BackupFrames.FrameOutputStream frameOutputStream = new BackupFrames.FrameOutputStream(fileOutputStream, key, IV);
+            try {
+                final BackupRows.Writer writer = new BackupRows.Writer(frameOutputStream);
+                this.mDatabaseBackend.commitMessages();
+                SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+                final String uuid = account.getUuid();
+                accountExport(db, uuid, writer);
+                simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                messageExport(db, uuid, writer, progress);
+                for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                    simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                }
+                writer.end();
+            } finally {
+                frameOutputStream.close();
             }
-            writer.flush();
-            writer.close();
+            Log.d(Config.LOGTAG, "written " + (file.length() / 1024) + "KiB in " + stopwatch.stop());
             mediaScannerScanFile(file);
             Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
             count++;
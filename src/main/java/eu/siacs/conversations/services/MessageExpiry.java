@@ -0,0 +1,70 @@
+package eu.siacs.conversations.services;
+
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+
+/**
+ * Deletes messages older than a given date in batches of {@link Config#EXPIRY_BATCH_SIZE}. Every
+ * batch is a task of its own on the given executor so that other writes queued in the meantime
+ * get their turn between two batches. Attachments that are no longer referenced by any message
+ * are deleted as well.
+ */
+class MessageExpiry implements Runnable {
+
+    private final XmppConnectionService service;
+    private final Executor executor;
+    private final long timestamp;
+    private final Runnable onFinished;
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private int messages = 0;
+    private int files = 0;
+
+    MessageExpiry(
+            final XmppConnectionService service,
+            final Executor executor,
+            final long timestamp,
+            final Runnable onFinished) {
+        this.service = service;
+        this.executor = executor;
+        this.timestamp = timestamp;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    public void run() {
+        stopwatch.start();
+        final DatabaseBackend.ExpiredMessages expired =
+                service.databaseBackend.expireOldMessages(timestamp, Config.EXPIRY_BATCH_SIZE);
+        messages += expired.count;
+        for (final String path : expired.orphanedFiles) {
+            if (service.getFileBackend().deleteExpiredFile(path)) {
+                ++files;
+            }
+        }
+        stopwatch.stop();
+        if (expired.count >= Config.EXPIRY_BATCH_SIZE) {
+            executor.execute(this);
+            return;
+        }
+        final long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        Log.d(
+                Config.LOGTAG,
+                "expired "
+                        + messages
+                        + " messages and "
+                        + files
+                        + " files in "
+                        + millis
+                        + "ms ("
+                        + (millis == 0 ? messages : messages * 1000L / millis)
+                        + " messages/s)");
+        onFinished.run();
+    }
+}
@@ -0,0 +1,50 @@
+package eu.siacs.conversations.services;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.concurrent.Executor;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+
+/**
+ * Rebuilds the full text index in batches of {@link Config#MESSAGE_INDEX_BATCH_SIZE} messages.
+ * Like {@link MessageExpiry} every batch is a task of its own on the given executor, and it runs
+ * with background priority so that restoring and receiving messages is not slowed down. Search
+ * keeps working in the meantime; see {@link DatabaseBackend#getMessageSearchCursor}.
+ */
+class MessageIndexer implements Runnable {
+
+    private final DatabaseBackend databaseBackend;
+    private final Executor executor;
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private int batches = 0;
+
+    MessageIndexer(final DatabaseBackend databaseBackend, final Executor executor) {
+        this.databaseBackend = databaseBackend;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        final int priority = Process.getThreadPriority(Process.myTid());
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        final boolean more;
+        try {
+            stopwatch.start();
+            more = databaseBackend.indexPendingMessages(Config.MESSAGE_INDEX_BATCH_SIZE);
+            stopwatch.stop();
+            ++batches;
+        } finally {
+            Process.setThreadPriority(priority);
+        }
+        if (more) {
+            executor.execute(this);
+        } else {
+            Log.d(Config.LOGTAG, "finished indexing messages in " + batches + " batches (" + stopwatch + ")");
+        }
+    }
+}
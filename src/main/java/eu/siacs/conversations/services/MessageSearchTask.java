@@ -34,6 +34,7 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -57,19 +58,25 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	private final XmppConnectionService xmppConnectionService;
 	private final List<String> term;
 	private final String uuid;
+	private final Continuation continuation;
 	private final OnSearchResultsAvailable onSearchResultsAvailable;
 
 	private boolean isCancelled = false;
 
-	private MessageSearchTask(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, OnSearchResultsAvailable onSearchResultsAvailable) {
+	private MessageSearchTask(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, final Continuation continuation, OnSearchResultsAvailable onSearchResultsAvailable) {
 		this.xmppConnectionService = xmppConnectionService;
 		this.term = term;
 		this.uuid = uuid;
+		this.continuation = continuation;
 		this.onSearchResultsAvailable = onSearchResultsAvailable;
 	}
 
-	public static void search(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, OnSearchResultsAvailable onSearchResultsAvailable) {
-		new MessageSearchTask(xmppConnectionService, term, uuid, onSearchResultsAvailable).executeInBackground();
+	/**
+	 * Searches for messages matching the term. Pass null as continuation for the first page and the
+	 * continuation handed to {@link OnSearchResultsAvailable} to load the page of older results.
+	 */
+	public static void search(XmppConnectionService xmppConnectionService, List<String> term, final String uuid, final Continuation continuation, OnSearchResultsAvailable onSearchResultsAvailable) {
+		new MessageSearchTask(xmppConnectionService, term, uuid, continuation, onSearchResultsAvailable).executeInBackground();
 	}
 
 	public static void cancelRunningTasks() {
@@ -88,7 +95,12 @@ public class MessageSearchTask implements Runnable, Cancellable {
 		try {
 			final HashMap<String, Conversational> conversationCache = new HashMap<>();
 			final List<Message> result = new ArrayList<>();
-			cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid);
+			Continuation next = null;
+			if (continuation == null) {
+				cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid, 0, null);
+			} else {
+				cursor = xmppConnectionService.databaseBackend.getMessageSearchCursor(term, uuid, continuation.timeSent, continuation.uuid);
+			}
 			long dbTimer = SystemClock.elapsedRealtime();
 			if (isCancelled) {
 				Log.d(Config.LOGTAG, "canceled search task");
@@ -96,12 +108,17 @@ public class MessageSearchTask implements Runnable, Cancellable {
 			}
 			if (cursor != null && cursor.getCount() > 0) {
 				cursor.moveToLast();
+				if (cursor.getCount() >= Config.SEARCH_PAGE_SIZE) {
+					// keyed on the last row rather than the last result; rows might be filtered out below
+					next = new Continuation(cursor.getLong(cursor.getColumnIndex(Message.TIME_SENT)), cursor.getString(cursor.getColumnIndex(Message.UUID)));
+				}
 				final int indexBody = cursor.getColumnIndex(Message.BODY);
 				final int indexOob = cursor.getColumnIndex(Message.OOB);
 				final int indexConversation = cursor.getColumnIndex(Message.CONVERSATION);
 				final int indexAccount = cursor.getColumnIndex(Conversation.ACCOUNT);
 				final int indexContact = cursor.getColumnIndex(Conversation.CONTACTJID);
 				final int indexMode = cursor.getColumnIndex(Conversation.MODE);
+				final Message.CursorIndex messageIndex = new Message.CursorIndex(cursor);
 				do {
 					if (isCancelled) {
 						Log.d(Config.LOGTAG, "canceled search task");
@@ -121,15 +138,17 @@ public class MessageSearchTask implements Runnable, Cancellable {
 						conversation = findOrGenerateStub(conversationUuid, accountUuid, contactJid, mode);
 						conversationCache.put(conversationUuid, conversation);
 					}
-					Message message = IndividualMessage.fromCursor(cursor, conversation);
+					Message message = IndividualMessage.fromCursor(cursor, conversation, messageIndex);
 					result.add(message);
 				} while (cursor.moveToPrevious());
 			}
 			long stopTimestamp = SystemClock.elapsedRealtime();
 			Log.d(Config.LOGTAG, "found " + result.size() + " messages in " + (stopTimestamp - startTimestamp) + "ms"+ " (db was "+(dbTimer - startTimestamp)+"ms)");
-			onSearchResultsAvailable.onSearchResultsAvailable(term, result);
+			onSearchResultsAvailable.onSearchResultsAvailable(term, result, continuation != null, next);
 		} catch (Exception e) {
 			Log.d(Config.LOGTAG, "exception while searching ", e);
+			// an empty page without continuation ends paging and lets the caller stop waiting
+			onSearchResultsAvailable.onSearchResultsAvailable(term, Collections.emptyList(), continuation != null, null);
 		} finally {
 			if (cursor != null) {
 				cursor.close();
@@ -153,4 +172,19 @@ public class MessageSearchTask implements Runnable, Cancellable {
 	private void executeInBackground() {
 		EXECUTOR.execute(this);
 	}
+
+	/**
+	 * Position after the last row of a page of search results. Results are ordered by time and
+	 * uuid, which allows the next page to be looked up without an offset.
+	 */
+	public static final class Continuation {
+
+		private final long timeSent;
+		private final String uuid;
+
+		private Continuation(final long timeSent, final String uuid) {
+			this.timeSent = timeSent;
+			this.uuid = uuid;
+		}
+	}
 }
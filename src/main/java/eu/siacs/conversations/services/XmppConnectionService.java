@@ -70,6 +70,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -82,6 +83,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -194,6 +197,7 @@ public class XmppConnectionService extends Service {
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
 
     public final CountDownLatch restoredFromDatabaseLatch = new CountDownLatch(1);
+    private volatile ConversationRestoreQueue mConversationRestoreQueue = null;
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
@@ -201,6 +205,8 @@ public class XmppConnectionService extends Service {
     private final SerialSingleThreadExecutor mDatabaseReaderExecutor = new SerialSingleThreadExecutor("DatabaseReader");
     private final SerialSingleThreadExecutor mNotificationExecutor = new SerialSingleThreadExecutor("NotificationExecutor");
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
+    private static final ScheduledExecutorService ROSTER_SYNC_SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Account> mScheduledRosterSyncs = new HashSet<>();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
@@ -283,6 +289,7 @@ public class XmppConnectionService extends Service {
                         message.setStatus(Message.STATUS_SEND);
                         message.setErrorMessage(null);
                         databaseBackend.updateMessage(message, false);
+                        updateConversationUi(ConversationChange.statusChanged(message));
                         return true;
                     }
                 }
@@ -643,7 +650,11 @@ public class XmppConnectionService extends Service {
     }
 
     public void search(final List<String> term, final String uuid, final OnSearchResultsAvailable onSearchResultsAvailable) {
-        MessageSearchTask.search(this, term, uuid, onSearchResultsAvailable);
+        MessageSearchTask.search(this, term, uuid, null, onSearchResultsAvailable);
+    }
+
+    public void searchOlder(final List<String> term, final String uuid, final MessageSearchTask.Continuation continuation, final OnSearchResultsAvailable onSearchResultsAvailable) {
+        MessageSearchTask.search(this, term, uuid, continuation, onSearchResultsAvailable);
     }
 
     @Override
@@ -1104,19 +1115,21 @@ public class XmppConnectionService extends Service {
     public void expireOldMessages(final boolean resetHasMessagesLeftOnServer) {
         mLastExpiryRun.set(SystemClock.elapsedRealtime());
         mDatabaseWriterExecutor.execute(() -> {
-            long timestamp = getAutomaticMessageDeletionDate();
+            final long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
-                databaseBackend.expireOldMessages(timestamp);
-                synchronized (XmppConnectionService.this.conversations) {
-                    for (Conversation conversation : XmppConnectionService.this.conversations) {
-                        conversation.expireOldMessages(timestamp);
-                        if (resetHasMessagesLeftOnServer) {
-                            conversation.messagesLoaded.set(true);
-                            conversation.setHasMessagesLeftOnServer(true);
+                Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(timestamp));
+                new MessageExpiry(this, mDatabaseWriterExecutor, timestamp, () -> {
+                    synchronized (XmppConnectionService.this.conversations) {
+                        for (Conversation conversation : XmppConnectionService.this.conversations) {
+                            conversation.expireOldMessages(timestamp);
+                            if (resetHasMessagesLeftOnServer) {
+                                conversation.messagesLoaded.set(true);
+                                conversation.setHasMessagesLeftOnServer(true);
+                            }
                         }
                     }
-                }
-                updateConversationUi();
+                    updateConversationUi();
+                }).run();
             }
         });
     }
@@ -1259,18 +1272,24 @@ public class XmppConnectionService extends Service {
         final long start = SystemClock.elapsedRealtime();
         final List<DatabaseBackend.FilePathInfo> relativeFilePaths = databaseBackend.getFilePathInfo();
         final List<DatabaseBackend.FilePathInfo> changed = new ArrayList<>();
+        // deduplicated attachments are shared by several messages; look at every file only once
+        final Map<String, Boolean> exists = new HashMap<>();
         for (final DatabaseBackend.FilePathInfo filePath : relativeFilePaths) {
             if (destroyed) {
                 Log.d(Config.LOGTAG, "Stop checking for deleted files because service has been destroyed");
                 return;
             }
-            final File file = fileBackend.getFileForPath(filePath.path);
-            if (filePath.setDeleted(!file.exists())) {
+            Boolean fileExists = exists.get(filePath.path);
+            if (fileExists == null) {
+                fileExists = fileBackend.getFileForPath(filePath.path).exists();
+                exists.put(filePath.path, fileExists);
+            }
+            if (filePath.setDeleted(!fileExists)) {
                 changed.add(filePath);
             }
         }
         final long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, "found " + changed.size() + " changed files on start up. total=" + relativeFilePaths.size() + ". (" + duration + "ms)");
+        Log.d(Config.LOGTAG, "found " + changed.size() + " changed files on start up. total=" + relativeFilePaths.size() + ", distinct=" + exists.size() + ". (" + duration + "ms)");
         if (changed.size() > 0) {
             databaseBackend.markFilesAsChanged(changed);
             markChangedFiles(changed);
@@ -1295,6 +1314,7 @@ public class XmppConnectionService extends Service {
         if (level >= TRIM_MEMORY_COMPLETE) {
             Log.d(Config.LOGTAG, "clear cache due to low memory");
             getBitmapCache().evictAll();
+            mAvatarService.evictAll();
         }
     }
 
@@ -1308,6 +1328,7 @@ public class XmppConnectionService extends Service {
         }
         destroyed = false;
         fileObserver.stopWatching();
+        databaseBackend.flushMessages();
         super.onDestroy();
     }
 
@@ -1396,6 +1417,7 @@ public class XmppConnectionService extends Service {
     }
 
     private void logoutAndSave(boolean stop) {
+        databaseBackend.flushMessages();
         int activeAccounts = 0;
         for (final Account account : accounts) {
             if (account.getStatus() != Account.State.DISABLED) {
@@ -1944,43 +1966,80 @@ public class XmppConnectionService extends Service {
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
             Runnable runnable = () -> {
-                if (DatabaseBackend.requiresMessageIndexRebuild()) {
-                    DatabaseBackend.getInstance(this).rebuildMessagesIndex();
-                }
-                final long deletionDate = getAutomaticMessageDeletionDate();
+                final long startMaintenance = SystemClock.elapsedRealtime();
+                // expiry runs in the background once all messages are restored
                 mLastExpiryRun.set(SystemClock.elapsedRealtime());
-                if (deletionDate > 0) {
-                    Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
-                    databaseBackend.expireOldMessages(deletionDate);
-                }
+                final long startRosterRestore = SystemClock.elapsedRealtime();
                 Log.d(Config.LOGTAG, "restoring roster...");
                 for (final Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
                     account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
                 }
                 getBitmapCache().evictAll();
+                mAvatarService.evictAll();
                 loadPhoneContacts();
                 Log.d(Config.LOGTAG, "restoring messages...");
                 final long startMessageRestore = SystemClock.elapsedRealtime();
+                final ConversationRestoreQueue restoreQueue = new ConversationRestoreQueue(getRestoreOrder(), (conversation, prioritized) -> {
+                    restoreMessages(conversation);
+                    if (prioritized) {
+                        updateConversationUi();
+                    }
+                });
+                this.mConversationRestoreQueue = restoreQueue;
                 final Conversation quickLoad = QuickLoader.get(this.conversations);
                 if (quickLoad != null) {
-                    restoreMessages(quickLoad);
-                    updateConversationUi();
-                    final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                    Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
+                    restoreQueue.prioritize(quickLoad);
                 }
-                for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
-                        restoreMessages(conversation);
-                    }
+                try {
+                    restoreQueue.run(Config.MESSAGE_RESTORE_THREADS);
+                } catch (final InterruptedException e) {
+                    Log.d(Config.LOGTAG, "interrupted while restoring messages", e);
+                    Thread.currentThread().interrupt();
                 }
+                this.mConversationRestoreQueue = null;
                 mNotificationService.finishBacklog();
                 restoredFromDatabaseLatch.countDown();
-                final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                // expired messages that have been restored are dropped from memory once they are deleted
+                expireOldMessages();
+                if (databaseBackend.hasPendingMessageIndex()) {
+                    mDatabaseWriterExecutor.execute(new MessageIndexer(databaseBackend, mDatabaseWriterExecutor));
+                }
+                final long endMessageRestore = SystemClock.elapsedRealtime();
+                Log.d(Config.LOGTAG, "finished restoring messages of " + restoreQueue.size() + " conversations in " + (endMessageRestore - startMessageRestore) + "ms. "
+                        + "conversations=" + diffConversationsRestore + "ms, "
+                        + "maintenance=" + (startRosterRestore - startMaintenance) + "ms, "
+                        + "roster=" + (startMessageRestore - startRosterRestore) + "ms, "
+                        + "first=" + (restoreQueue.getFirstRestored() - startMessageRestore) + "ms");
                 updateConversationUi();
             };
-            mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
+            mDatabaseReaderExecutor.execute(runnable);
+        }
+    }
+
+    /**
+     * Orders conversations by the time of their most recent message so that the conversations at
+     * the top of the overview get restored first.
+     */
+    private List<Conversation> getRestoreOrder() {
+        final Map<String, Long> timestamps = databaseBackend.getLastMessageTimestamps();
+        final List<Conversation> conversations = new ArrayList<>(this.conversations);
+        Collections.sort(conversations, (a, b) -> {
+            final Long left = timestamps.get(a.getUuid());
+            final Long right = timestamps.get(b.getUuid());
+            return Long.compare(right == null ? 0 : right, left == null ? 0 : left);
+        });
+        return conversations;
+    }
+
+    /**
+     * Moves the conversation to the front of the startup restore so that a conversation the user
+     * opens right after launching the app is not stuck behind hundreds of others.
+     */
+    public void prioritizeRestore(final Conversation conversation) {
+        final ConversationRestoreQueue restoreQueue = this.mConversationRestoreQueue;
+        if (restoreQueue != null) {
+            restoreQueue.prioritize(conversation);
         }
     }
 
@@ -2019,8 +2078,24 @@ public class XmppConnectionService extends Service {
     }
 
 
+    /**
+     * Writes the roster after {@link Config#ROSTER_SYNC_DELAY}. Changes made in the meantime (for
+     * example a burst of roster pushes or presences) are written together.
+     */
     public void syncRoster(final Account account) {
-        mRosterSyncTaskManager.execute(account, () -> databaseBackend.writeRoster(account.getRoster()));
+        synchronized (mScheduledRosterSyncs) {
+            if (!mScheduledRosterSyncs.add(account)) {
+                return;
+            }
+        }
+        ROSTER_SYNC_SCHEDULER.schedule(() -> {
+            synchronized (mScheduledRosterSyncs) {
+                mScheduledRosterSyncs.remove(account);
+            }
+            if (accounts.contains(account)) {
+                mRosterSyncTaskManager.execute(account, () -> databaseBackend.writeRoster(account.getRoster()));
+            }
+        }, Config.ROSTER_SYNC_DELAY, TimeUnit.MILLISECONDS);
     }
 
     public List<Conversation> getConversations() {
@@ -2034,6 +2109,7 @@ public class XmppConnectionService extends Service {
                 return;
             }
         }
+        fileBackend.removeThumbnails(file);
         final boolean isInternalFile = fileBackend.isInternalFile(file);
         final List<String> uuids = databaseBackend.markFileAsDeleted(file, isInternalFile);
         Log.d(Config.LOGTAG, "deleted file " + file.getAbsolutePath() + " internal=" + isInternalFile + ", database hits=" + uuids.size());
@@ -2258,8 +2334,9 @@ public class XmppConnectionService extends Service {
             final Conversation c = conversation;
             final Runnable runnable = () -> {
                 if (loadMessagesFromDb) {
-                    c.addAll(0, databaseBackend.getMessages(c, Config.PAGE_SIZE));
-                    updateConversationUi();
+                    final List<Message> messages = databaseBackend.getMessages(c, Config.PAGE_SIZE);
+                    c.addAll(0, messages);
+                    updateConversationUi(ConversationChange.rangePrepended(c, messages));
                     c.messagesLoaded.set(true);
                 }
                 if (account.getXmppConnection() != null
@@ -2786,6 +2863,8 @@ public class XmppConnectionService extends Service {
             }
         }
         this.mNotificationService.setIsInForeground(false);
+        mDatabaseWriterExecutor.execute(databaseBackend::checkpoint);
+        Log.d(Config.LOGTAG, "avatar cache: " + mAvatarService.getCacheMetrics());
         Log.d(Config.LOGTAG, "app switched into background");
     }
 
@@ -3548,7 +3627,24 @@ public class XmppConnectionService extends Service {
 
     public void updateMessage(Message message, boolean includeBody) {
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(ConversationChange.messageEdited(message));
+    }
+
+    /**
+     * Deletes the file of the message on the database executor; deleteFile() waits for the
+     * attachment lock and queries the messages table.
+     */
+    public void deleteMessageFile(final Message message) {
+        mDatabaseWriterExecutor.execute(
+                () -> {
+                    if (fileBackend.deleteFile(message)) {
+                        message.setDeleted(true);
+                        evictPreview(message.getUuid());
+                        databaseBackend.updateMessage(message, false);
+                        // the conversation list shows the file as well
+                        updateConversationUi();
+                    }
+                });
     }
 
     public void createMessageAsync(final Message message) {
@@ -3559,7 +3655,7 @@ public class XmppConnectionService extends Service {
         if (!databaseBackend.updateMessage(message, uuid)) {
             Log.e(Config.LOGTAG, "error updated message in DB after edit");
         }
-        updateConversationUi();
+        updateConversationUi(ConversationChange.messageEdited(message));
     }
 
     protected void syncDirtyContacts(Account account) {
@@ -4154,7 +4250,7 @@ public class XmppConnectionService extends Service {
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(ConversationChange.statusChanged(message));
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
         }
@@ -4237,6 +4333,20 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    /**
+     * Like {@link #updateConversationUi()} but tells listeners what changed. A null change
+     * results in a full update.
+     */
+    public void updateConversationUi(final ConversationChange change) {
+        if (change == null) {
+            updateConversationUi();
+            return;
+        }
+        for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
+            listener.onConversationChange(change);
+        }
+    }
+
     public void notifyJingleRtpConnectionUpdate(final Account account, final Jid with, final String sessionId, final RtpEndUserState state) {
         for (OnJingleRtpConnectionUpdate listener : threadSafeList(this.onJingleRtpConnectionUpdate)) {
             listener.onJingleRtpConnectionUpdate(account, with, sessionId, state);
@@ -4931,6 +5041,10 @@ public class XmppConnectionService extends Service {
 
     public interface OnConversationUpdate {
         void onConversationUpdate();
+
+        default void onConversationChange(final ConversationChange change) {
+            onConversationUpdate();
+        }
     }
 
     public interface OnJingleRtpConnectionUpdate {
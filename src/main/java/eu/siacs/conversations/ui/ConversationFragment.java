@@ -55,12 +55,14 @@ import android.widget.Toast;
 
 import androidx.annotation.IdRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.appcompat.app.AlertDialog;
 import androidx.core.view.inputmethod.InputConnectionCompat;
 import androidx.core.view.inputmethod.InputContentInfoCompat;
 import androidx.databinding.DataBindingUtil;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
@@ -71,6 +73,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -97,6 +100,7 @@ import eu.siacs.conversations.entities.Transferable;
 import eu.siacs.conversations.entities.TransferablePlaceholder;
 import eu.siacs.conversations.http.HttpDownloadConnection;
 import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.services.ConversationChange;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.QuickConversationsService;
 import eu.siacs.conversations.services.XmppConnectionService;
@@ -1862,6 +1866,7 @@ public class ConversationFragment extends XmppFragment
         if (writeGranted(grantResults, permissions)) {
             if (activity != null && activity.xmppConnectionService != null) {
                 activity.xmppConnectionService.getBitmapCache().evictAll();
+                activity.xmppConnectionService.getAvatarService().evictAll();
                 activity.xmppConnectionService.restartFileObserver();
             }
             refresh();
@@ -2140,15 +2145,7 @@ public class ConversationFragment extends XmppFragment
         builder.setMessage(R.string.delete_file_dialog_msg);
         builder.setPositiveButton(
                 R.string.confirm,
-                (dialog, which) -> {
-                    if (activity.xmppConnectionService.getFileBackend().deleteFile(message)) {
-                        message.setDeleted(true);
-                        activity.xmppConnectionService.evictPreview(message.getUuid());
-                        activity.xmppConnectionService.updateMessage(message, false);
-                        activity.onConversationsListItemUpdated();
-                        refresh();
-                    }
-                });
+                (dialog, which) -> activity.xmppConnectionService.deleteMessageFile(message));
         builder.create().show();
     }
 
@@ -2399,6 +2396,9 @@ public class ConversationFragment extends XmppFragment
 
     public void reInit(final Conversation conversation, final Bundle extras) {
         QuickLoader.set(conversation.getUuid());
+        if (activity != null && activity.xmppConnectionService != null) {
+            activity.xmppConnectionService.prioritizeRestore(conversation);
+        }
         final boolean changedConversation = this.conversation != conversation;
         if (changedConversation) {
             this.saveMessageDraftStopAudioPlayer();
@@ -2780,9 +2780,42 @@ public class ConversationFragment extends XmppFragment
         this.refresh(true);
     }
 
+    /**
+     * Applies changes to messages that are already on screen. Only the rows showing one of the
+     * changed messages are bound again, unless the changes also altered which rows are shown (for
+     * example because messages are no longer merged) in which case the entire list is
+     * invalidated. Changes to other conversations are ignored.
+     */
+    public void refresh(final List<ConversationChange> changes) {
+        if (this.binding == null || this.conversation == null) {
+            return;
+        }
+        final List<Message> changedMessages = new ArrayList<>();
+        for (final ConversationChange change : changes) {
+            if (change.getConversation() != this.conversation) {
+                continue;
+            }
+            if (!change.isInPlace()) {
+                refresh();
+                return;
+            }
+            changedMessages.addAll(change.getMessages());
+        }
+        if (changedMessages.size() > 0) {
+            refresh(true, changedMessages);
+        }
+    }
+
     private void refresh(boolean notifyConversationRead) {
+        refresh(notifyConversationRead, null);
+    }
+
+    private void refresh(
+            final boolean notifyConversationRead, @Nullable final List<Message> changedMessages) {
         synchronized (this.messageList) {
             if (this.conversation != null) {
+                final List<Message> previousRows =
+                        changedMessages == null ? null : new ArrayList<>(this.messageList);
                 conversation.populateWithMessages(this.messageList);
                 updateSnackBar(conversation);
                 updateStatusMessages();
@@ -2791,7 +2824,9 @@ public class ConversationFragment extends XmppFragment
                     binding.unreadCountCustomView.setUnreadCount(
                             conversation.getReceivedMessagesCountSinceUuid(lastMessageUuid));
                 }
-                this.messageListAdapter.notifyDataSetChanged();
+                if (previousRows == null || !rebindRows(previousRows, changedMessages)) {
+                    this.messageListAdapter.notifyDataSetChanged();
+                }
                 updateChatMsgHint();
                 if (notifyConversationRead && activity != null) {
                     binding.messagesView.post(this::fireReadEvent);
@@ -2802,6 +2837,62 @@ public class ConversationFragment extends XmppFragment
         }
     }
 
+    private boolean rebindRows(
+            final List<Message> previousRows, final List<Message> changedMessages) {
+        if (!sameRows(previousRows, this.messageList)) {
+            return false;
+        }
+        final Set<Message> rows = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Message message : changedMessages) {
+            Message row = message;
+            while (row != null && row.wasMergedIntoPrevious()) {
+                row = row.prev();
+            }
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        final ListView listView = this.binding.messagesView;
+        final int first = listView.getFirstVisiblePosition() - listView.getHeaderViewsCount();
+        for (int i = 0; i < listView.getChildCount(); ++i) {
+            final int position = first + i;
+            if (position < 0
+                    || position >= this.messageList.size()
+                    || !rows.contains(this.messageList.get(position))) {
+                continue;
+            }
+            if (!this.messageListAdapter.rebind(position, listView.getChildAt(i), listView)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Status messages and date separators are created from scratch on every refresh so they are
+     * compared by content. Everything else has to be the same instance.
+     */
+    private static boolean sameRows(final List<Message> a, final List<Message> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); ++i) {
+            final Message left = a.get(i);
+            final Message right = b.get(i);
+            if (left == right) {
+                continue;
+            }
+            if (left.getType() != Message.TYPE_STATUS
+                    || right.getType() != Message.TYPE_STATUS
+                    || left.getClass() != right.getClass()
+                    || left.getTimeSent() != right.getTimeSent()
+                    || !Objects.equal(left.getBody(), right.getBody())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     protected void messageSent() {
         mSendingPgpMessage.set(false);
         this.binding.textinput.setText("");
@@ -58,6 +58,7 @@ import androidx.databinding.DataBindingUtil;
 
 import org.openintents.openpgp.util.OpenPgpApi;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -70,6 +71,8 @@ import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.services.ConversationChange;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.ui.interfaces.OnBackendConnected;
 import eu.siacs.conversations.ui.interfaces.OnConversationArchived;
@@ -118,6 +121,7 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
     private ActivityConversationsBinding binding;
     private boolean mActivityPaused = true;
     private final AtomicBoolean mRedirectInProcess = new AtomicBoolean(false);
+    private final List<ConversationChange> pendingConversationChanges = new ArrayList<>();
 
     private static boolean isViewOrShareIntent(Intent i) {
         Log.d(Config.LOGTAG, "action: " + (i == null ? null : i.getAction()));
@@ -704,6 +708,45 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
         this.refreshUi();
     }
 
+    @Override
+    public void onConversationChange(final ConversationChange change) {
+        if (!change.isInPlace()) {
+            onConversationUpdate();
+            return;
+        }
+        final boolean schedule;
+        synchronized (this.pendingConversationChanges) {
+            schedule = this.pendingConversationChanges.isEmpty();
+            this.pendingConversationChanges.add(change);
+        }
+        if (schedule) {
+            runOnUiThread(this::applyConversationChanges);
+        }
+    }
+
+    private void applyConversationChanges() {
+        final List<ConversationChange> changes;
+        synchronized (this.pendingConversationChanges) {
+            changes = new ArrayList<>(this.pendingConversationChanges);
+            this.pendingConversationChanges.clear();
+        }
+        boolean latestMessageChanged = false;
+        for (final ConversationChange change : changes) {
+            final Message latest = change.getConversation().getLatestMessage();
+            for (final Message message : change.getMessages()) {
+                latestMessageChanged |= message == latest;
+            }
+        }
+        for (@IdRes int id : FRAGMENT_ID_NOTIFICATION_ORDER) {
+            final Fragment fragment = getFragmentManager().findFragmentById(id);
+            if (fragment instanceof ConversationFragment) {
+                ((ConversationFragment) fragment).refresh(changes);
+            } else if (fragment instanceof ConversationsOverviewFragment && latestMessageChanged) {
+                ((ConversationsOverviewFragment) fragment).refresh();
+            }
+        }
+    }
+
     @Override
     public void onRosterUpdate() {
         this.refreshUi();
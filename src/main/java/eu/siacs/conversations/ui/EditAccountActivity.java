@@ -682,6 +682,11 @@ public class EditAccountActivity extends OmemoActivity implements OnAccountUpdat
         if (showMoreInfo.isVisible()) {
             showMoreInfo.setChecked(binding.serverInfoMore.getVisibility() == View.VISIBLE);
         }
+        final MenuItem utf8XmlReader = menu.findItem(R.id.action_utf8_xml_reader);
+        utf8XmlReader.setVisible(mAccount != null && !mInitMode && mShowOptions);
+        if (utf8XmlReader.isVisible()) {
+            utf8XmlReader.setChecked(mAccount.isOptionSet(Account.OPTION_UTF8_XML_READER));
+        }
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -863,6 +868,12 @@ public class EditAccountActivity extends OmemoActivity implements OnAccountUpdat
             case R.id.action_server_info_show_more:
                 changeMoreTableVisibility(!item.isChecked());
                 break;
+            case R.id.action_utf8_xml_reader:
+                // takes effect with the reconnect triggered by updateAccount()
+                mAccount.setOption(Account.OPTION_UTF8_XML_READER, !item.isChecked());
+                xmppConnectionService.updateAccount(mAccount);
+                invalidateOptionsMenu();
+                break;
             case R.id.action_share_barcode:
                 shareBarcode();
                 break;
@@ -39,6 +39,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.EditText;
 
@@ -79,6 +80,9 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 	private ActivitySearchBinding binding;
 	private MessageAdapter messageListAdapter;
 	private final List<Message> messages = new ArrayList<>();
+	private final List<Message> results = new ArrayList<>();
+	private MessageSearchTask.Continuation olderResults = null;
+	private boolean loadingOlderResults = false;
 	private WeakReference<Message> selectedMessageReference = new WeakReference<>(null);
 	private String uuid;
 	private final ChangeWatcher<List<String>> currentSearch = new ChangeWatcher<>();
@@ -100,6 +104,21 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 		this.messageListAdapter = new MessageAdapter(this, this.messages, uuid == null);
 		this.messageListAdapter.setOnContactPictureClicked(this);
 		this.binding.searchResults.setAdapter(messageListAdapter);
+		this.binding.searchResults.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				final List<String> term = currentSearch.get();
+				if (firstVisibleItem < 5 && olderResults != null && !loadingOlderResults && term != null && xmppConnectionService != null) {
+					loadingOlderResults = true;
+					xmppConnectionService.searchOlder(term, uuid, olderResults, SearchActivity.this);
+				}
+			}
+		});
 		registerForContextMenu(this.binding.searchResults);
 	}
 
@@ -253,6 +272,9 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 		} else {
 			MessageSearchTask.cancelRunningTasks();
 			this.messages.clear();
+			this.results.clear();
+			this.olderResults = null;
+			this.loadingOlderResults = false;
 			messageListAdapter.setHighlightedTerm(null);
 			messageListAdapter.notifyDataSetChanged();
 			changeBackground(false, false);
@@ -260,15 +282,33 @@ public class SearchActivity extends XmppActivity implements TextWatcher, OnSearc
 	}
 
 	@Override
-	public void onSearchResultsAvailable(List<String> term, List<Message> messages) {
+	public void onSearchResultsAvailable(List<String> term, List<Message> messages, boolean older, MessageSearchTask.Continuation next) {
 		runOnUiThread(() -> {
+			if (older && !term.equals(currentSearch.get())) {
+				return;
+			}
+			final int oldPosition = this.binding.searchResults.getFirstVisiblePosition();
+			final View view = this.binding.searchResults.getChildAt(0);
+			final int oldTop = view == null ? 0 : view.getTop();
+			final int oldSize = this.messages.size();
+			if (!older) {
+				this.results.clear();
+			}
+			this.results.addAll(0, messages);
+			this.olderResults = next;
+			this.loadingOlderResults = false;
+			final List<Message> list = new ArrayList<>(this.results);
+			DateSeparator.addAll(list);
 			this.messages.clear();
+			this.messages.addAll(list);
 			messageListAdapter.setHighlightedTerm(term);
-			DateSeparator.addAll(messages);
-			this.messages.addAll(messages);
 			messageListAdapter.notifyDataSetChanged();
-			changeBackground(true, messages.size() > 0);
-			ListViewUtils.scrollToBottom(this.binding.searchResults);
+			changeBackground(true, this.results.size() > 0);
+			if (older) {
+				this.binding.searchResults.setSelectionFromTop(oldPosition + this.messages.size() - oldSize, oldTop);
+			} else {
+				ListViewUtils.scrollToBottom(this.binding.searchResults);
+			}
 		});
 	}
 
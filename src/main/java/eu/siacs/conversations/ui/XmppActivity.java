@@ -897,7 +897,8 @@ public abstract class XmppActivity extends ActionBarActivity {
                         getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
                 try {
-                    task.execute(message);
+                    // thumbnails are generated in parallel; FileBackend deduplicates per message
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, message);
                 } catch (final RejectedExecutionException ignored) {
                     ignored.printStackTrace();
                 }
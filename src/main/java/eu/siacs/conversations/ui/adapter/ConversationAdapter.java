@@ -22,7 +22,7 @@ import eu.siacs.conversations.entities.Conversational;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.ui.ConversationFragment;
 import eu.siacs.conversations.ui.XmppActivity;
-import eu.siacs.conversations.ui.util.AvatarWorkerTask;
+import eu.siacs.conversations.ui.util.AvatarLoader;
 import eu.siacs.conversations.ui.util.StyledAttributes;
 import eu.siacs.conversations.utils.IrregularUnicodeDetector;
 import eu.siacs.conversations.utils.MimeUtils;
@@ -35,11 +35,13 @@ public class ConversationAdapter
 
     private final XmppActivity activity;
     private final List<Conversation> conversations;
+    private final AvatarLoader avatarLoader;
     private OnConversationClickListener listener;
 
     public ConversationAdapter(XmppActivity activity, List<Conversation> conversations) {
         this.activity = activity;
         this.conversations = conversations;
+        this.avatarLoader = new AvatarLoader(activity, R.dimen.avatar_on_conversation_overview);
     }
 
     @NonNull
@@ -276,10 +278,8 @@ public class ConversationAdapter
                         : View.GONE);
         viewHolder.binding.conversationLastupdate.setText(
                 UIHelper.readableTimeDifference(activity, timestamp));
-        AvatarWorkerTask.loadAvatar(
-                conversation,
-                viewHolder.binding.conversationImage,
-                R.dimen.avatar_on_conversation_overview);
+        avatarLoader.load(conversation, viewHolder.binding.conversationImage);
+        avatarLoader.prefetch(conversations, position);
         viewHolder.itemView.setOnClickListener(v -> listener.onConversationClick(v, conversation));
     }
 
@@ -20,7 +20,7 @@ import eu.siacs.conversations.databinding.ContactBinding;
 import eu.siacs.conversations.entities.ListItem;
 import eu.siacs.conversations.ui.SettingsActivity;
 import eu.siacs.conversations.ui.XmppActivity;
-import eu.siacs.conversations.ui.util.AvatarWorkerTask;
+import eu.siacs.conversations.ui.util.AvatarLoader;
 import eu.siacs.conversations.ui.util.StyledAttributes;
 import eu.siacs.conversations.utils.IrregularUnicodeDetector;
 import eu.siacs.conversations.xmpp.Jid;
@@ -28,6 +28,8 @@ import eu.siacs.conversations.xmpp.Jid;
 public class ListItemAdapter extends ArrayAdapter<ListItem> {
 
 	protected XmppActivity activity;
+	private final List<ListItem> items;
+	private final AvatarLoader avatarLoader;
 	private boolean showDynamicTags = false;
 	private OnTagClickedListener mOnTagClickedListener = null;
 	private final View.OnClickListener onTagTvClick = view -> {
@@ -41,6 +43,8 @@ public class ListItemAdapter extends ArrayAdapter<ListItem> {
 	public ListItemAdapter(XmppActivity activity, List<ListItem> objects) {
 		super(activity, 0, objects);
 		this.activity = activity;
+		this.items = objects;
+		this.avatarLoader = new AvatarLoader(activity, R.dimen.avatar);
 	}
 
 
@@ -85,7 +89,8 @@ public class ListItemAdapter extends ArrayAdapter<ListItem> {
 			viewHolder.jid.setVisibility(View.GONE);
 		}
 		viewHolder.name.setText(item.getDisplayName());
-		AvatarWorkerTask.loadAvatar(item, viewHolder.avatar, R.dimen.avatar);
+		avatarLoader.load(item, viewHolder.avatar);
+		avatarLoader.prefetch(items, position);
 		return view;
 	}
 
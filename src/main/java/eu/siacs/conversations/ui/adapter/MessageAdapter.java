@@ -609,6 +609,21 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         }
     }
 
+    /**
+     * Binds the message at the given position again to a row that is currently on screen.
+     *
+     * @return false if the row was inflated for a different view type and can not be reused
+     */
+    public boolean rebind(final int position, final View view, final ViewGroup parent) {
+        final Object tag = view.getTag();
+        if (!(tag instanceof ViewHolder)
+                || ((ViewHolder) tag).viewType != getItemViewType(position)) {
+            return false;
+        }
+        getView(position, view, parent);
+        return true;
+    }
+
     @Override
     public View getView(int position, View view, ViewGroup parent) {
         final Message message = getItem(position);
@@ -620,6 +635,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         ViewHolder viewHolder;
         if (view == null) {
             viewHolder = new ViewHolder();
+            viewHolder.viewType = type;
             switch (type) {
                 case DATE_SEPARATOR:
                     view = activity.getLayoutInflater().inflate(R.layout.message_date_bubble, parent, false);
@@ -912,6 +928,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
 
     private static class ViewHolder {
 
+        private int viewType;
         public Button load_more_messages;
         public ImageView edit_indicator;
         public RelativeLayout audioPlayer;
@@ -32,9 +32,14 @@ package eu.siacs.conversations.ui.interfaces;
 import java.util.List;
 
 import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.services.MessageSearchTask;
 
 public interface OnSearchResultsAvailable {
 
-	void onSearchResultsAvailable(List<String> term, List<Message> messages);
+	/**
+	 * @param older true if the messages are older results of a previous search
+	 * @param next continuation for the next page of older results or null if there are none
+	 */
+	void onSearchResultsAvailable(List<String> term, List<Message> messages, boolean older, MessageSearchTask.Continuation next);
 
 }
@@ -0,0 +1,166 @@
+package eu.siacs.conversations.ui.util;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+import androidx.annotation.DimenRes;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import eu.siacs.conversations.services.AvatarService;
+import eu.siacs.conversations.ui.XmppActivity;
+
+/**
+ * Loads the avatars of a conversation or contact list. Besides the rows that are bound, the
+ * avatars of the next {@link #LOOK_AHEAD} rows in scroll direction are rendered so that they are
+ * usually cached by the time they scroll into view.
+ *
+ * <p>Misses are rendered on a small pool shared by all lists. There is at most one request per
+ * avatar in flight; requests that left the window before they were started are cancelled.
+ * Finished avatars are collected and handed to their views once per frame.
+ */
+public class AvatarLoader {
+
+    private static final int LOOK_AHEAD = 12;
+
+    private static final ExecutorService EXECUTOR =
+            Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1)));
+
+    private final XmppActivity activity;
+    private final int size;
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    // only accessed on the UI thread
+    private final Map<ImageView, AvatarService.Avatarable> bound = new WeakHashMap<>();
+    private int lastPosition = 0;
+
+    // guarded by this
+    private final Map<AvatarService.Avatarable, Future<?>> pending = new HashMap<>();
+    private final Map<AvatarService.Avatarable, Bitmap> finished = new HashMap<>();
+    private boolean frameScheduled = false;
+
+    public AvatarLoader(final XmppActivity activity, final @DimenRes int size) {
+        this.activity = activity;
+        this.size = (int) activity.getResources().getDimension(size);
+    }
+
+    /** Shows the avatar if it is cached or puts a placeholder in place and requests it. */
+    public void load(final AvatarService.Avatarable avatarable, final ImageView imageView) {
+        final AvatarService avatarService = activity.avatarService();
+        bound.put(imageView, avatarable);
+        AvatarWorkerTask.setContentDescription(avatarable, imageView);
+        final Bitmap bitmap = avatarService.get(avatarable, size, true);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            imageView.setBackgroundColor(0x00000000);
+        } else {
+            imageView.setBackgroundColor(avatarable.getAvatarBackgroundColor());
+            imageView.setImageDrawable(null);
+            synchronized (this) {
+                request(avatarService, avatarable);
+            }
+        }
+    }
+
+    /**
+     * Requests the avatars of the rows following the one at position, in the direction the list
+     * was last scrolled, and cancels requests for rows that are neither bound nor in that window.
+     */
+    public void prefetch(final List<? extends AvatarService.Avatarable> items, final int position) {
+        final int from, to;
+        if (position >= lastPosition) {
+            from = position + 1;
+            to = Math.min(items.size() - 1, position + LOOK_AHEAD);
+        } else {
+            from = Math.max(0, position - LOOK_AHEAD);
+            to = position - 1;
+        }
+        lastPosition = position;
+        final AvatarService avatarService = activity.avatarService();
+        final Set<AvatarService.Avatarable> window = new LinkedHashSet<>(bound.values());
+        for (int i = from; i <= to; ++i) {
+            final AvatarService.Avatarable avatarable = items.get(i);
+            // avatars that are still cached need no request; evicted ones are rendered again
+            if (avatarable != null && avatarService.get(avatarable, size, true) == null) {
+                window.add(avatarable);
+            }
+        }
+        synchronized (this) {
+            final Iterator<Map.Entry<AvatarService.Avatarable, Future<?>>> iterator =
+                    pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<AvatarService.Avatarable, Future<?>> entry = iterator.next();
+                if (!window.contains(entry.getKey()) && entry.getValue().cancel(false)) {
+                    iterator.remove();
+                }
+            }
+            for (int i = from; i <= to; ++i) {
+                final AvatarService.Avatarable avatarable = items.get(i);
+                if (avatarable != null && window.contains(avatarable)) {
+                    request(avatarService, avatarable);
+                }
+            }
+        }
+    }
+
+    private void request(
+            final AvatarService avatarService, final AvatarService.Avatarable avatarable) {
+        if (pending.containsKey(avatarable)) {
+            return;
+        }
+        try {
+            pending.put(avatarable, EXECUTOR.submit(() -> render(avatarService, avatarable)));
+        } catch (final RejectedExecutionException ignored) {
+        }
+    }
+
+    private void render(
+            final AvatarService avatarService, final AvatarService.Avatarable avatarable) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Bitmap bitmap = null;
+        try {
+            bitmap = avatarService.get(avatarable, size, false);
+        } finally {
+            synchronized (this) {
+                pending.remove(avatarable);
+                if (bitmap != null) {
+                    finished.put(avatarable, bitmap);
+                    if (!frameScheduled) {
+                        frameScheduled = true;
+                        choreographer.postFrameCallback(this::deliver);
+                    }
+                }
+            }
+        }
+    }
+
+    private void deliver(final long frameTimeNanos) {
+        final Map<AvatarService.Avatarable, Bitmap> batch;
+        synchronized (this) {
+            batch = new HashMap<>(finished);
+            finished.clear();
+            frameScheduled = false;
+        }
+        for (final Map.Entry<ImageView, AvatarService.Avatarable> entry : bound.entrySet()) {
+            final Bitmap bitmap = batch.get(entry.getValue());
+            final ImageView imageView = entry.getKey();
+            if (bitmap != null && imageView != null) {
+                imageView.setImageBitmap(bitmap);
+                imageView.setBackgroundColor(0x00000000);
+            }
+        }
+    }
+}
@@ -101,7 +101,7 @@ public class AvatarWorkerTask extends AsyncTask<AvatarService.Avatarable, Void,
         }
     }
 
-    private static void setContentDescription(final AvatarService.Avatarable avatarable, final ImageView imageView) {
+    static void setContentDescription(final AvatarService.Avatarable avatarable, final ImageView imageView) {
         final Context context = imageView.getContext();
         if (avatarable instanceof Account) {
             imageView.setContentDescription(context.getString(R.string.your_avatar));
@@ -8,8 +8,13 @@ import eu.siacs.conversations.xmpp.Jid;
 
 public class BackupFileHeader {
 
-    private static final int VERSION = 1;
+    /** gzip compressed SQL statements in a single AES-GCM stream */
+    public static final int VERSION_SQL = 1;
+    /** binary rows in independently compressed and encrypted frames, see {@link BackupFrames} */
+    public static final int VERSION_FRAMES = 2;
+    private static final int VERSION = VERSION_FRAMES;
 
+    private final int version;
     private final String app;
     private final Jid jid;
     private final long timestamp;
@@ -20,7 +25,8 @@ public class BackupFileHeader {
     @Override
     public String toString() {
         return "BackupFileHeader{" +
-                "app='" + app + '\'' +
+                "version=" + version +
+                ", app='" + app + '\'' +
                 ", jid=" + jid +
                 ", timestamp=" + timestamp +
                 ", iv=" + CryptoHelper.bytesToHex(iv) +
@@ -28,7 +34,8 @@ public class BackupFileHeader {
                 '}';
     }
 
-    public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+    public BackupFileHeader(int version, String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this.version = version;
         this.app = app;
         this.jid = jid;
         this.timestamp = timestamp;
@@ -37,7 +44,7 @@ public class BackupFileHeader {
     }
 
     public void write(DataOutputStream dataOutputStream) throws IOException {
-        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(version);
         dataOutputStream.writeUTF(app);
         dataOutputStream.writeUTF(jid.asBareJid().toEscapedString());
         dataOutputStream.writeLong(timestamp);
@@ -58,10 +65,14 @@ public class BackupFileHeader {
         byte[] salt = new byte[16];
         inputStream.readFully(salt);
 
-        return new BackupFileHeader(app, Jid.of(jid), timestamp, iv, salt);
+        return new BackupFileHeader(version, app, Jid.of(jid), timestamp, iv, salt);
 
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     public byte[] getSalt() {
         return salt;
     }
@@ -0,0 +1,322 @@
+package eu.siacs.conversations.utils;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.BadPaddingException;
+
+/**
+ * Body of a version 2 backup file ({@link BackupFileHeader#VERSION_FRAMES}). The plain text is cut
+ * into chunks of {@link #CHUNK_SIZE} bytes. Every chunk is deflated and encrypted with AES-GCM on
+ * its own so that several chunks can be processed in parallel, both when writing and when reading.
+ *
+ * <p>A frame is stored as one flag byte, the length of the cipher text as an int and the cipher
+ * text. The nonce of a frame is the IV from the header with its last four bytes xor-ed with the
+ * index of the frame. Index and flags are authenticated as associated data, which means frames can
+ * neither be reordered nor dropped from the end without the reader noticing.
+ */
+public final class BackupFrames {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int FLAG_LAST = 1;
+    private static final int MAC_SIZE = 128;
+    private static final int TAG_LENGTH = MAC_SIZE / 8;
+    // deflateBound() of zlib: the most a chunk can grow by when it does not compress at all
+    private static final int MAX_FRAME_LENGTH =
+            CHUNK_SIZE
+                    + (CHUNK_SIZE >> 12)
+                    + (CHUNK_SIZE >> 14)
+                    + (CHUNK_SIZE >> 25)
+                    + 13
+                    + TAG_LENGTH;
+
+    private BackupFrames() {}
+
+    private static int threads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static AEADBlockCipher cipher(
+            final boolean encrypt,
+            final byte[] key,
+            final byte[] iv,
+            final int index,
+            final int flags) {
+        final byte[] nonce = Arrays.copyOf(iv, iv.length);
+        nonce[nonce.length - 4] ^= (byte) (index >>> 24);
+        nonce[nonce.length - 3] ^= (byte) (index >>> 16);
+        nonce[nonce.length - 2] ^= (byte) (index >>> 8);
+        nonce[nonce.length - 1] ^= (byte) index;
+        final byte[] associatedData = {
+            (byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index,
+            (byte) flags
+        };
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(
+                encrypt, new AEADParameters(new KeyParameter(key), MAC_SIZE, nonce, associatedData));
+        return cipher;
+    }
+
+    private static byte[] process(final AEADBlockCipher cipher, final byte[] input)
+            throws InvalidCipherTextException {
+        final byte[] output = new byte[cipher.getOutputSize(input.length)];
+        final int length = cipher.processBytes(input, 0, input.length, output, 0);
+        final int total = length + cipher.doFinal(output, length);
+        return total == output.length ? output : Arrays.copyOf(output, total);
+    }
+
+    private static byte[] seal(
+            final byte[] key, final byte[] iv, final int index, final int flags, final byte[] plain)
+            throws InvalidCipherTextException {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2 + 64);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return process(cipher(true, key, iv, index, flags), compressed.toByteArray());
+    }
+
+    private static byte[] open(
+            final byte[] key, final byte[] iv, final int index, final int flags, final byte[] sealed)
+            throws IOException {
+        final byte[] compressed;
+        try {
+            compressed = process(cipher(false, key, iv, index, flags), sealed);
+        } catch (final InvalidCipherTextException e) {
+            throw new IOException(
+                    "unable to decrypt frame " + index, new BadPaddingException(e.getMessage()));
+        }
+        final Inflater inflater = new Inflater(true);
+        final ByteArrayOutputStream plain = new ByteArrayOutputStream(CHUNK_SIZE);
+        try {
+            // nowrap streams need one extra byte of input to finish
+            inflater.setInput(Arrays.copyOf(compressed, compressed.length + 1));
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("frame " + index + " is truncated");
+                }
+                plain.write(buffer, 0, count);
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException("frame " + index + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return plain.toByteArray();
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Compresses and encrypts chunks on a small thread pool while the caller keeps producing plain
+     * text. Frames are written in order; at most two frames per thread are kept in memory.
+     */
+    public static class FrameOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] key;
+        private final byte[] iv;
+        private final int threads = threads();
+        private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int position = 0;
+        private int index = 0;
+        private boolean closed = false;
+
+        public FrameOutputStream(final OutputStream out, final byte[] key, final byte[] iv) {
+            this.out = out;
+            this.key = key;
+            this.iv = iv;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (position == chunk.length) {
+                submit(false);
+            }
+            chunk[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == chunk.length) {
+                    submit(false);
+                }
+                final int count = Math.min(length, chunk.length - position);
+                System.arraycopy(b, offset, chunk, position, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private void submit(final boolean last) throws IOException {
+            final byte[] plain = position == chunk.length ? chunk : Arrays.copyOf(chunk, position);
+            final int index = this.index++;
+            final int flags = last ? FLAG_LAST : 0;
+            pending.add(executor.submit(() -> frame(flags, seal(key, iv, index, flags, plain))));
+            chunk = new byte[CHUNK_SIZE];
+            position = 0;
+            while (pending.size() >= threads * 2) {
+                out.write(await(pending.remove()));
+            }
+        }
+
+        private static byte[] frame(final int flags, final byte[] sealed) {
+            final byte[] frame = new byte[5 + sealed.length];
+            frame[0] = (byte) flags;
+            frame[1] = (byte) (sealed.length >>> 24);
+            frame[2] = (byte) (sealed.length >>> 16);
+            frame[3] = (byte) (sealed.length >>> 8);
+            frame[4] = (byte) sealed.length;
+            System.arraycopy(sealed, 0, frame, 5, sealed.length);
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                while (!pending.isEmpty()) {
+                    out.write(await(pending.remove()));
+                }
+                out.close();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Reads frames ahead of the caller and decrypts and inflates them on a small thread pool.
+     * Throws an {@link IOException} caused by a {@link BadPaddingException} if a frame can not be
+     * authenticated, which usually means the password was wrong.
+     */
+    public static class FrameInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private final byte[] key;
+        private final byte[] iv;
+        private final int threads = threads();
+        private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] chunk = new byte[0];
+        private int position = 0;
+        private int index = 0;
+        private boolean last = false;
+
+        public FrameInputStream(final InputStream in, final byte[] key, final byte[] iv) {
+            this.in = new DataInputStream(in);
+            this.key = key;
+            this.iv = iv;
+        }
+
+        private boolean fill() throws IOException {
+            while (!last && pending.size() < threads * 2) {
+                final int flags;
+                try {
+                    flags = in.readUnsignedByte();
+                } catch (final EOFException e) {
+                    throw new IOException("backup file is truncated after frame " + index);
+                }
+                // the length is not authenticated; check it before allocating anything
+                final int length = in.readInt();
+                if (length < TAG_LENGTH || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("invalid length " + length + " of frame " + index);
+                }
+                final byte[] sealed = new byte[length];
+                in.readFully(sealed);
+                final int index = this.index++;
+                last = (flags & FLAG_LAST) != 0;
+                pending.add(executor.submit(() -> open(key, iv, index, flags, sealed)));
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            chunk = await(pending.remove());
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position == chunk.length) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (position == chunk.length) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, b, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package eu.siacs.conversations.utils;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of the rows in a version 2 backup file. A table record names the table and its
+ * columns; the row records that follow carry one typed value per column. Values keep their SQLite
+ * storage class so nothing has to be parsed or escaped.
+ */
+public final class BackupRows {
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_TABLE = 1;
+    private static final int RECORD_ROW = 2;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_INTEGER = 1;
+    private static final int VALUE_FLOAT = 2;
+    private static final int VALUE_TEXT = 3;
+    private static final int VALUE_BLOB = 4;
+
+    private BackupRows() {}
+
+    /** Receives the values of a row; columns are numbered from 1 like statement parameters. */
+    public interface Values {
+        void putNull(int index);
+
+        void putLong(int index, long value);
+
+        void putDouble(int index, double value);
+
+        void putString(int index, String value);
+
+        void putBlob(int index, byte[] value);
+    }
+
+    public static class Writer {
+
+        private final DataOutputStream out;
+        private int columns = 0;
+
+        public Writer(final OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void table(final String table, final String[] columns) throws IOException {
+            out.writeByte(RECORD_TABLE);
+            out.writeUTF(table);
+            out.writeShort(columns.length);
+            for (final String column : columns) {
+                out.writeUTF(column);
+            }
+            this.columns = columns.length;
+        }
+
+        /**
+         * Writes the current row of the cursor. Column i of the table is read from cursor column
+         * indexes[i].
+         */
+        public void row(final Cursor cursor, final int[] indexes) throws IOException {
+            if (indexes.length != columns) {
+                throw new IllegalArgumentException("expected " + columns + " columns");
+            }
+            out.writeByte(RECORD_ROW);
+            for (final int index : indexes) {
+                switch (cursor.getType(index)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        out.writeByte(VALUE_NULL);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        out.writeByte(VALUE_INTEGER);
+                        out.writeLong(cursor.getLong(index));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        out.writeByte(VALUE_FLOAT);
+                        out.writeDouble(cursor.getDouble(index));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        writeBytes(VALUE_BLOB, cursor.getBlob(index));
+                        break;
+                    default:
+                        writeBytes(
+                                VALUE_TEXT,
+                                cursor.getString(index).getBytes(StandardCharsets.UTF_8));
+                        break;
+                }
+            }
+        }
+
+        /** Writes a row from values that are either null, Long, Double, String or byte[]. */
+        public void row(final Object[] values) throws IOException {
+            if (values.length != columns) {
+                throw new IllegalArgumentException("expected " + columns + " columns");
+            }
+            out.writeByte(RECORD_ROW);
+            for (final Object value : values) {
+                if (value == null) {
+                    out.writeByte(VALUE_NULL);
+                } else if (value instanceof Long) {
+                    out.writeByte(VALUE_INTEGER);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(VALUE_FLOAT);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof byte[]) {
+                    writeBytes(VALUE_BLOB, (byte[]) value);
+                } else {
+                    writeBytes(VALUE_TEXT, value.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private void writeBytes(final int type, final byte[] bytes) throws IOException {
+            out.writeByte(type);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /** Marks the end of the backup and flushes, but does not close, the underlying stream. */
+        public void end() throws IOException {
+            out.writeByte(RECORD_END);
+            out.flush();
+        }
+    }
+
+    public static class Reader {
+
+        private final DataInputStream in;
+        private String table = null;
+        private String[] columns = new String[0];
+
+        public Reader(final InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * Advances to the next record. Returns true for a row and false at the end of the backup;
+         * table records are consumed and reflected in {@link #getTable()} and {@link
+         * #getColumns()}.
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                final int record = in.readUnsignedByte();
+                if (record == RECORD_END) {
+                    return false;
+                } else if (record == RECORD_ROW) {
+                    return true;
+                } else if (record == RECORD_TABLE) {
+                    table = in.readUTF();
+                    columns = new String[in.readUnsignedShort()];
+                    for (int i = 0; i < columns.length; ++i) {
+                        columns[i] = in.readUTF();
+                    }
+                } else {
+                    throw new IOException("unknown record type " + record);
+                }
+            }
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        /** Binds the values of the current row to the parameters 1..n of the statement. */
+        public void bind(final SQLiteStatement statement) throws IOException {
+            statement.clearBindings();
+            read(
+                    new Values() {
+                        @Override
+                        public void putNull(final int index) {
+                            statement.bindNull(index);
+                        }
+
+                        @Override
+                        public void putLong(final int index, final long value) {
+                            statement.bindLong(index, value);
+                        }
+
+                        @Override
+                        public void putDouble(final int index, final double value) {
+                            statement.bindDouble(index, value);
+                        }
+
+                        @Override
+                        public void putString(final int index, final String value) {
+                            statement.bindString(index, value);
+                        }
+
+                        @Override
+                        public void putBlob(final int index, final byte[] value) {
+                            statement.bindBlob(index, value);
+                        }
+                    });
+        }
+
+        /** Reads the values of the current row and hands them to values as columns 1..n. */
+        public void read(final Values values) throws IOException {
+            for (int i = 1; i <= columns.length; ++i) {
+                final int type = in.readUnsignedByte();
+                switch (type) {
+                    case VALUE_NULL:
+                        values.putNull(i);
+                        break;
+                    case VALUE_INTEGER:
+                        values.putLong(i, in.readLong());
+                        break;
+                    case VALUE_FLOAT:
+                        values.putDouble(i, in.readDouble());
+                        break;
+                    case VALUE_TEXT:
+                        values.putString(i, new String(readBytes(), StandardCharsets.UTF_8));
+                        break;
+                    case VALUE_BLOB:
+                        values.putBlob(i, readBytes());
+                        break;
+                    default:
+                        throw new IOException("unknown value type " + type);
+                }
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("invalid length " + length);
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package eu.siacs.conversations.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Mutable bitmaps kept for reuse, either as decode target ({@link
+ * android.graphics.BitmapFactory.Options#inBitmap}) or as canvas. Only bitmaps that have never been
+ * handed to a view may be put back; anything that ended up in a cache might still be on screen.
+ */
+public final class BitmapPool {
+
+    private final long maxBytes;
+    private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+    private long bytes = 0;
+
+    public BitmapPool(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Removes and returns a bitmap with an allocation of at least minBytes or returns null. */
+    public synchronized Bitmap take(final int minBytes) {
+        final Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= minBytes) {
+                iterator.remove();
+                bytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /** Returns a transparent ARGB_8888 bitmap of the given size, reusing one from the pool if possible. */
+    public Bitmap get(final int width, final int height) {
+        final Bitmap bitmap = take(width * height * 4);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+        bitmaps.addFirst(bitmap);
+        bytes += size;
+        while (bytes > maxBytes) {
+            bytes -= bitmaps.removeLast().getAllocationByteCount();
+        }
+    }
+}
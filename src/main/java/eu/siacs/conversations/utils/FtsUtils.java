@@ -72,6 +72,34 @@ public class FtsUtils {
 		return builder.toString();
 	}
 
+	/**
+	 * Approximates the match string with LIKE conditions on the given column for messages that are
+	 * not part of the full text index yet. Keywords are ignored, which means OR is treated like AND.
+	 */
+	public static String toLikeCondition(final String column, final List<String> terms, final List<String> args) {
+		final StringBuilder builder = new StringBuilder();
+		final int start = args.size();
+		boolean positive = false;
+		for (final String term : terms) {
+			if (isKeyword(term)) {
+				continue;
+			}
+			final boolean negated = term.startsWith("-");
+			final String cleaned = clean(negated ? term.substring(1) : term);
+			if (cleaned.isEmpty()) {
+				continue;
+			}
+			positive |= !negated;
+			builder.append(builder.length() == 0 ? "" : " AND ").append(column).append(negated ? " NOT LIKE ?" : " LIKE ?").append(" ESCAPE '\\'");
+			args.add('%' + cleaned.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + '%');
+		}
+		if (!positive) {
+			args.subList(start, args.size()).clear();
+			return "0";
+		}
+		return "(" + builder + ")";
+	}
+
 	static boolean isKeyword(String term) {
 		return KEYWORDS.contains(term.toUpperCase(Locale.ENGLISH));
 	}
@@ -3,6 +3,7 @@ package eu.siacs.conversations.utils;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -19,6 +20,47 @@ public class XmlHelper {
         return content;
     }
 
+    /**
+     * Same as {@link #encodeEntities(String)} but writes the encoded content straight into the
+     * sink instead of creating intermediate strings.
+     */
+    public static void encodeEntities(final String content, final Appendable out)
+            throws IOException {
+        final int length = content.length();
+        int start = 0;
+        for (int i = 0; i < length; ++i) {
+            final char c = content.charAt(i);
+            final String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&apos;";
+                    break;
+                default:
+                    if ((c < 0x20 && c != '\n' && c != '\t' && c != '\r') || c == 0x7f) {
+                        replacement = "";
+                    } else {
+                        continue;
+                    }
+            }
+            out.append(content, start, i);
+            out.append(replacement);
+            start = i + 1;
+        }
+        out.append(content, start, length);
+    }
+
     public static String printElementNames(final Element element) {
         final List<String> features =
                 element == null
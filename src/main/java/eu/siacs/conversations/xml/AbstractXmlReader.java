@@ -0,0 +1,44 @@
+package eu.siacs.conversations.xml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+public abstract class AbstractXmlReader implements Closeable {
+
+	public abstract void setInputStream(InputStream inputStream) throws IOException;
+
+	public abstract void reset() throws IOException;
+
+	@Override
+	public abstract void close();
+
+	public abstract Tag readTag() throws IOException;
+
+	public Element readElement(Tag currentTag) throws IOException {
+		Element element = new Element(currentTag.getName());
+		element.setAttributes(currentTag.getAttributes());
+		Tag nextTag = this.readTag();
+		if (nextTag == null) {
+			throw new IOException("interrupted mid tag");
+		}
+		if (nextTag.isNo()) {
+			element.setContent(nextTag.getName());
+			nextTag = this.readTag();
+			if (nextTag == null) {
+				throw new IOException("interrupted mid tag");
+			}
+		}
+		while (!nextTag.isEnd(element.getName())) {
+			if (!nextTag.isNo()) {
+				Element child = this.readElement(nextTag);
+				element.addChild(child);
+			}
+			nextTag = this.readTag();
+			if (nextTag == null) {
+				throw new IOException("interrupted mid tag");
+			}
+		}
+		return element;
+	}
+}
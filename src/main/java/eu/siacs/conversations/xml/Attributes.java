@@ -0,0 +1,252 @@
+package eu.siacs.conversations.xml;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact, unsynchronized attribute map for {@link Element} and {@link Tag}. Keys and values are
+ * kept in one array in insertion order; lookups are linear which beats hashing for the handful of
+ * attributes a typical XMPP element carries. Like {@link java.util.Hashtable} neither keys nor
+ * values may be null.
+ */
+public final class Attributes extends AbstractMap<String, String> {
+
+    private static final String[] EMPTY = new String[0];
+
+    private String[] data = EMPTY;
+    private int size = 0;
+    private int modCount = 0;
+
+    public Attributes() {}
+
+    public Attributes(final int capacity) {
+        this.data = capacity == 0 ? EMPTY : new String[capacity * 2];
+    }
+
+    public Attributes(final Map<String, String> attributes) {
+        this(attributes.size());
+        if (attributes instanceof Attributes) {
+            final Attributes other = (Attributes) attributes;
+            System.arraycopy(other.data, 0, this.data, 0, other.size * 2);
+            this.size = other.size;
+        } else {
+            for (final Entry<String, String> entry : attributes.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Maps attribute names that appear on almost every stanza to their string constant so that
+     * lookups with literals can be answered by an identity comparison and parsed names do not
+     * retain their own copies.
+     */
+    public static String intern(final String name) {
+        switch (name) {
+            case "xmlns":
+                return "xmlns";
+            case "id":
+                return "id";
+            case "type":
+                return "type";
+            case "from":
+                return "from";
+            case "to":
+                return "to";
+            case "xml:lang":
+                return "xml:lang";
+            case "jid":
+                return "jid";
+            case "node":
+                return "node";
+            case "var":
+                return "var";
+            case "name":
+                return "name";
+            case "by":
+                return "by";
+            case "stamp":
+                return "stamp";
+            case "affiliation":
+                return "affiliation";
+            case "role":
+                return "role";
+            case "nick":
+                return "nick";
+            case "code":
+                return "code";
+            case "ver":
+                return "ver";
+            case "hash":
+                return "hash";
+            case "category":
+                return "category";
+            default:
+                return name;
+        }
+    }
+
+    private int indexOf(final Object key) {
+        final String[] data = this.data;
+        for (int i = 0; i < size * 2; i += 2) {
+            if (data[i] == key) {
+                return i;
+            }
+        }
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < size * 2; i += 2) {
+            if (data[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String keyAt(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        return data[index * 2];
+    }
+
+    public String valueAt(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        return data[index * 2 + 1];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(final Object key) {
+        final int index = indexOf(key);
+        return index >= 0 ? data[index + 1] : null;
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final int index = indexOf(key);
+        if (index >= 0) {
+            final String previous = data[index + 1];
+            data[index + 1] = value;
+            return previous;
+        }
+        if (size * 2 == data.length) {
+            data = Arrays.copyOf(data, Math.max(8, data.length * 2));
+        }
+        data[size * 2] = key;
+        data[size * 2 + 1] = value;
+        ++size;
+        ++modCount;
+        return null;
+    }
+
+    @Override
+    public String remove(final Object key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final String previous = data[index + 1];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(final int index) {
+        final int end = size * 2;
+        System.arraycopy(data, index + 2, data, index, end - index - 2);
+        data[end - 2] = null;
+        data[end - 1] = null;
+        --size;
+        ++modCount;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, 0, size * 2, null);
+        size = 0;
+        ++modCount;
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @NonNull
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, String>> {
+
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new SimpleImmutableEntry<>(data[last * 2], data[last * 2 + 1]);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last * 2);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+}
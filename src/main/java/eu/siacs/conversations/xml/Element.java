@@ -5,8 +5,9 @@ import com.google.common.primitives.Ints;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.List;
 
 import eu.siacs.conversations.utils.XmlHelper;
@@ -16,9 +17,10 @@ import eu.siacs.conversations.xmpp.stanzas.MessagePacket;
 
 public class Element {
     private final String name;
-    private Hashtable<String, String> attributes = new Hashtable<>();
+    private Attributes attributes = new Attributes();
     private String content;
-    protected List<Element> children = new ArrayList<>();
+    // most elements are leaves; the list is only allocated once the first child is added
+    protected List<Element> children = Collections.emptyList();
 
     public Element(String name) {
         this.name = name;
@@ -29,16 +31,23 @@ public class Element {
         this.setAttribute("xmlns", xmlns);
     }
 
+    protected List<Element> mutableChildren() {
+        if (this.children == Collections.<Element>emptyList()) {
+            this.children = new ArrayList<>(2);
+        }
+        return this.children;
+    }
+
     public Element addChild(Element child) {
         this.content = null;
-        children.add(child);
+        mutableChildren().add(child);
         return child;
     }
 
     public Element addChild(String name) {
         this.content = null;
         Element child = new Element(name);
-        children.add(child);
+        mutableChildren().add(child);
         return child;
     }
 
@@ -46,13 +55,13 @@ public class Element {
         this.content = null;
         Element child = new Element(name);
         child.setAttribute("xmlns", xmlns);
-        children.add(child);
+        mutableChildren().add(child);
         return child;
     }
 
     public Element setContent(String content) {
         this.content = content;
-        this.children.clear();
+        clearChildren();
         return this;
     }
 
@@ -140,17 +149,13 @@ public class Element {
         this.attributes.remove(name);
     }
 
-    public Element setAttributes(Hashtable<String, String> attributes) {
+    public Element setAttributes(Attributes attributes) {
         this.attributes = attributes;
         return this;
     }
 
     public String getAttribute(String name) {
-        if (this.attributes.containsKey(name)) {
-            return this.attributes.get(name);
-        } else {
-            return null;
-        }
+        return this.attributes.get(name);
     }
 
     public Optional<Integer> getOptionalIntAttribute(final String name) {
@@ -173,32 +178,36 @@ public class Element {
         return null;
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Attributes getAttributes() {
         return this.attributes;
     }
 
     @NotNull
     public String toString() {
         final StringBuilder elementOutput = new StringBuilder();
+        try {
+            appendTo(elementOutput);
+        } catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return elementOutput.toString();
+    }
+
+    /** Serializes this element including all of its children into the sink in a single pass. */
+    public void appendTo(final Appendable out) throws IOException {
         if ((content == null) && (children.size() == 0)) {
-            final Tag emptyTag = Tag.empty(name);
-            emptyTag.setAttributes(this.attributes);
-            elementOutput.append(emptyTag);
+            Tag.appendTo(out, Tag.EMPTY, name, this.attributes);
         } else {
-            final Tag startTag = Tag.start(name);
-            startTag.setAttributes(this.attributes);
-            elementOutput.append(startTag);
+            Tag.appendTo(out, Tag.START, name, this.attributes);
             if (content != null) {
-                elementOutput.append(XmlHelper.encodeEntities(content));
+                XmlHelper.encodeEntities(content, out);
             } else {
                 for (final Element child : children) {
-                    elementOutput.append(child.toString());
+                    child.appendTo(out);
                 }
             }
-            final Tag endTag = Tag.end(name);
-            elementOutput.append(endTag);
+            Tag.appendTo(out, Tag.END, name, this.attributes);
         }
-        return elementOutput.toString();
     }
 
     public final String getName() {
@@ -206,7 +215,9 @@ public class Element {
     }
 
     public void clearChildren() {
-        this.children.clear();
+        if (!this.children.isEmpty()) {
+            this.children.clear();
+        }
     }
 
     public void setAttribute(String name, long value) {
@@ -2,9 +2,7 @@ package eu.siacs.conversations.xml;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Hashtable;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.io.IOException;
 
 import eu.siacs.conversations.utils.XmlHelper;
 
@@ -16,7 +14,7 @@ public class Tag {
 
     protected int type;
     protected String name;
-    protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+    protected Attributes attributes = new Attributes();
 
     protected Tag(int type, String name) {
         this.type = type;
@@ -52,7 +50,7 @@ public class Tag {
         return this;
     }
 
-    public void setAttributes(final Hashtable<String, String> attributes) {
+    public void setAttributes(final Attributes attributes) {
         this.attributes = attributes;
     }
 
@@ -79,29 +77,45 @@ public class Tag {
     @NotNull
     public String toString() {
         final StringBuilder tagOutput = new StringBuilder();
-        tagOutput.append('<');
+        try {
+            appendTo(tagOutput);
+        } catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return tagOutput.toString();
+    }
+
+    public void appendTo(final Appendable out) throws IOException {
+        appendTo(out, type, name, attributes);
+    }
+
+    static void appendTo(
+            final Appendable out,
+            final int type,
+            final String name,
+            final Attributes attributes)
+            throws IOException {
+        out.append('<');
         if (type == END) {
-            tagOutput.append('/');
+            out.append('/');
         }
-        tagOutput.append(name);
+        out.append(name);
         if (type != END) {
-            final Set<Entry<String, String>> attributeSet = attributes.entrySet();
-            for (final Entry<String, String> entry : attributeSet) {
-                tagOutput.append(' ');
-                tagOutput.append(entry.getKey());
-                tagOutput.append("=\"");
-                tagOutput.append(XmlHelper.encodeEntities(entry.getValue()));
-                tagOutput.append('"');
+            for (int i = 0; i < attributes.size(); ++i) {
+                out.append(' ');
+                out.append(attributes.keyAt(i));
+                out.append("=\"");
+                XmlHelper.encodeEntities(attributes.valueAt(i), out);
+                out.append('"');
             }
         }
         if (type == EMPTY) {
-            tagOutput.append('/');
+            out.append('/');
         }
-        tagOutput.append('>');
-        return tagOutput.toString();
+        out.append('>');
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Attributes getAttributes() {
         return this.attributes;
     }
 }
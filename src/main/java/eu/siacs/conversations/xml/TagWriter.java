@@ -2,18 +2,28 @@ package eu.siacs.conversations.xml;
 
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.xmpp.stanzas.AbstractStanza;
+import eu.siacs.conversations.xmpp.stanzas.streammgmt.RequestPacket;
 
 public class TagWriter {
 
+    private static final int MAX_BATCH_SIZE = 128;
+    // larger buffers (after sending a big stanza) are not kept around
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private OutputStream rawOutputStream;
     private OutputStreamWriter outputStream;
     private boolean finished = false;
     private final LinkedBlockingQueue<AbstractStanza> writeQueue = new LinkedBlockingQueue<AbstractStanza>();
@@ -21,6 +31,10 @@ public class TagWriter {
 
     private final Thread asyncStanzaWriter = new Thread() {
 
+        private final List<AbstractStanza> batch = new ArrayList<>();
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        private OutputStreamWriter writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+
         @Override
         public void run() {
             stanzaWriterCountDownLatch = new CountDownLatch(1);
@@ -29,20 +43,47 @@ public class TagWriter {
                     break;
                 }
                 try {
-                    AbstractStanza output = writeQueue.take();
-                    outputStream.write(output.toString());
-                    if (writeQueue.size() == 0) {
-                        outputStream.flush();
-                    }
+                    batch.add(writeQueue.take());
+                    writeQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    writeBatch();
                 } catch (Exception e) {
                     break;
+                } finally {
+                    batch.clear();
                 }
             }
             stanzaWriterCountDownLatch.countDown();
         }
 
+        /**
+         * Serializes all stanzas of the batch into one buffer and writes and flushes that in one
+         * go. Multiple ack requests within a batch are collapsed into one that is sent last.
+         */
+        private void writeBatch() throws IOException {
+            boolean requestAck = false;
+            for (final AbstractStanza stanza : batch) {
+                if (stanza instanceof RequestPacket) {
+                    requestAck = true;
+                } else {
+                    stanza.appendTo(writer);
+                }
+            }
+            if (requestAck) {
+                writer.write(REQUEST_ACK);
+            }
+            writer.flush();
+            writeBuffer(buffer);
+            if (buffer.size() > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new ByteArrayOutputStream(8192);
+                writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+            } else {
+                buffer.reset();
+            }
+        }
     };
 
+    private static final String REQUEST_ACK = new RequestPacket().toString();
+
     public TagWriter() {
     }
 
@@ -50,9 +91,20 @@ public class TagWriter {
         if (out == null) {
             throw new IOException();
         }
+        this.rawOutputStream = out;
         this.outputStream = new OutputStreamWriter(out);
     }
 
+    private synchronized void writeBuffer(final ByteArrayOutputStream buffer) throws IOException {
+        if (outputStream == null) {
+            throw new IOException("output stream was null");
+        }
+        // tags written with flush=false might still sit in the writer
+        outputStream.flush();
+        buffer.writeTo(rawOutputStream);
+        rawOutputStream.flush();
+    }
+
     public void beginDocument() throws IOException {
         if (outputStream == null) {
             throw new IOException("output stream was null");
@@ -68,7 +120,7 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(tag.toString());
+        tag.appendTo(outputStream);
         if (flush) {
             outputStream.flush();
         }
@@ -78,7 +130,7 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(element.toString());
+        element.appendTo(outputStream);
         outputStream.flush();
     }
 
@@ -123,5 +175,6 @@ public class TagWriter {
             }
         }
         outputStream = null;
+        rawOutputStream = null;
     }
 }
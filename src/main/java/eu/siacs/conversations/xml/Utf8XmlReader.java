@@ -0,0 +1,424 @@
+package eu.siacs.conversations.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the XMPP stream straight from UTF-8 bytes without a {@link java.io.Reader} or a pull
+ * parser in between. It only understands the subset of XML that RFC 6120 allows on a stream:
+ * elements, attributes, character data, the predefined entities, character references and the
+ * XML declaration. Comments, processing instructions, CDATA sections and DTDs are rejected.
+ *
+ * <p>Element and attribute names are looked up in a small cache keyed by their bytes, so the
+ * recurring names of a stream (message, body, presence, xmlns, id, ...) are turned into strings
+ * only once. Character data and attribute values are decoded on an ASCII fast path.
+ *
+ * <p>The reader does not depend on Android classes and behaves like {@link XmlReader}: empty
+ * elements are reported as a start tag followed by an end tag, names are reported without their
+ * prefix and the resolved namespace is put into the xmlns attribute.
+ */
+public class Utf8XmlReader extends AbstractXmlReader {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int NAME_CACHE_SIZE = 256; // must be a power of two
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private InputStream is;
+
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+    private boolean tokenAscii = true;
+
+    private final String[] nameCache = new String[NAME_CACHE_SIZE];
+
+    // namespace declarations in scope; namespaceCount[depth] is the number of declarations
+    // that were visible before the element at that depth was opened
+    private final List<String> namespacePrefixes = new ArrayList<>();
+    private final List<String> namespaceUris = new ArrayList<>();
+    private int[] namespaceCount = new int[16];
+    // qualified names of the open elements, to match them against their end tags
+    private String[] openElements = new String[16];
+    private int depth = 0;
+
+    private String pendingEndTag = null;
+
+    @Override
+    public void setInputStream(final InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            throw new IOException();
+        }
+        this.is = inputStream;
+        this.position = 0;
+        this.limit = 0;
+        resetParserState();
+    }
+
+    /**
+     * Starts a new document on the same input stream. Unlike {@link #setInputStream(InputStream)}
+     * bytes that have already been buffered are kept.
+     */
+    @Override
+    public void reset() throws IOException {
+        if (this.is == null) {
+            throw new IOException();
+        }
+        resetParserState();
+    }
+
+    private void resetParserState() {
+        this.namespacePrefixes.clear();
+        this.namespaceUris.clear();
+        this.depth = 0;
+        this.pendingEndTag = null;
+    }
+
+    @Override
+    public void close() {
+        this.is = null;
+    }
+
+    @Override
+    public Tag readTag() throws IOException {
+        if (this.pendingEndTag != null) {
+            final Tag tag = Tag.end(this.pendingEndTag);
+            this.pendingEndTag = null;
+            closeScope();
+            return tag;
+        }
+        while (this.is != null) {
+            final int c = read();
+            if (c == -1) {
+                if (depth > 0) {
+                    throw new IOException("unexpected end of stream at depth " + depth);
+                }
+                return null;
+            }
+            if (c == '<') {
+                final int next = read();
+                if (next == '?') {
+                    skipXmlDeclaration();
+                } else if (next == '!') {
+                    throw new IOException("comments, CDATA and DTDs are not allowed in XMPP");
+                } else if (next == '/') {
+                    return readEndTag();
+                } else if (next == -1) {
+                    throw new IOException("unexpected end of stream in tag");
+                } else {
+                    return readStartTag(next);
+                }
+            } else {
+                return Tag.no(readText(c));
+            }
+        }
+        return null;
+    }
+
+    private Tag readStartTag(final int first) throws IOException {
+        final String qualifiedName = readName(first);
+        int c = skipWhitespace(read());
+        final List<String> attributeNames = new ArrayList<>(4);
+        final List<String> attributeValues = new ArrayList<>(4);
+        enterScope(qualifiedName);
+        while (c != '>' && c != '/') {
+            if (c == -1) {
+                throw new IOException("unexpected end of stream in tag");
+            }
+            final String attributeName = readName(c);
+            c = skipWhitespace(read());
+            if (c != '=') {
+                throw new IOException("expected '=' after attribute " + attributeName);
+            }
+            final int quote = skipWhitespace(read());
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("attribute value of " + attributeName + " is not quoted");
+            }
+            final String value = readAttributeValue(quote);
+            if ("xmlns".equals(attributeName)) {
+                declareNamespace("", value);
+            } else if (attributeName.startsWith("xmlns:")) {
+                declareNamespace(attributeName.substring(6), value);
+            } else {
+                attributeNames.add(attributeName);
+                attributeValues.add(value);
+            }
+            c = skipWhitespace(read());
+        }
+        final boolean empty = c == '/';
+        if (empty && read() != '>') {
+            throw new IOException("expected '>' after '/' in " + qualifiedName);
+        }
+        final int colon = qualifiedName.indexOf(':');
+        final String prefix = colon < 0 ? "" : qualifiedName.substring(0, colon);
+        final String name = colon < 0 ? qualifiedName : qualifiedName.substring(colon + 1);
+        final String namespace = resolveNamespace(prefix);
+        if (namespace == null) {
+            throw new IOException("undeclared namespace prefix " + prefix);
+        }
+        final Attributes attributes = new Attributes(attributeNames.size() + 1);
+        for (int i = 0; i < attributeNames.size(); ++i) {
+            attributes.put(attributeNames.get(i), attributeValues.get(i));
+        }
+        attributes.put("xmlns", namespace);
+        final Tag tag = Tag.start(name);
+        tag.setAttributes(attributes);
+        if (empty) {
+            this.pendingEndTag = name;
+        }
+        return tag;
+    }
+
+    private Tag readEndTag() throws IOException {
+        final String qualifiedName = readName(read());
+        if (skipWhitespace(read()) != '>') {
+            throw new IOException("expected '>' after end tag " + qualifiedName);
+        }
+        if (depth == 0) {
+            throw new IOException("unexpected end tag " + qualifiedName);
+        }
+        if (!qualifiedName.equals(openElements[depth - 1])) {
+            throw new IOException(
+                    "end tag " + qualifiedName + " does not match " + openElements[depth - 1]);
+        }
+        closeScope();
+        final int colon = qualifiedName.indexOf(':');
+        return Tag.end(colon < 0 ? qualifiedName : qualifiedName.substring(colon + 1));
+    }
+
+    private void skipXmlDeclaration() throws IOException {
+        if (depth > 0) {
+            throw new IOException("processing instructions are not allowed in XMPP");
+        }
+        int previous = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (previous == '?' && c == '>') {
+                return;
+            }
+            previous = c;
+        }
+        throw new IOException("unexpected end of stream in XML declaration");
+    }
+
+    private void enterScope(final String qualifiedName) {
+        if (depth + 1 >= namespaceCount.length) {
+            namespaceCount = Arrays.copyOf(namespaceCount, namespaceCount.length * 2);
+            openElements = Arrays.copyOf(openElements, namespaceCount.length);
+        }
+        namespaceCount[depth] = namespacePrefixes.size();
+        openElements[depth] = qualifiedName;
+        ++depth;
+    }
+
+    private void closeScope() {
+        --depth;
+        openElements[depth] = null;
+        final int count = namespaceCount[depth];
+        while (namespacePrefixes.size() > count) {
+            namespacePrefixes.remove(namespacePrefixes.size() - 1);
+            namespaceUris.remove(namespaceUris.size() - 1);
+        }
+    }
+
+    private void declareNamespace(final String prefix, final String uri) {
+        namespacePrefixes.add(prefix);
+        namespaceUris.add(uri);
+    }
+
+    private String resolveNamespace(final String prefix) {
+        for (int i = namespacePrefixes.size() - 1; i >= 0; --i) {
+            if (prefix.equals(namespacePrefixes.get(i))) {
+                return namespaceUris.get(i);
+            }
+        }
+        if (prefix.isEmpty()) {
+            return "";
+        } else if ("xml".equals(prefix)) {
+            return XML_NAMESPACE;
+        } else {
+            return null;
+        }
+    }
+
+    private String readName(int c) throws IOException {
+        tokenLength = 0;
+        tokenAscii = true;
+        int hash = 0;
+        while (c != -1 && !isWhitespace(c) && c != '>' && c != '/' && c != '=') {
+            append(c);
+            hash = 31 * hash + c;
+            c = read();
+        }
+        if (tokenLength == 0) {
+            throw new IOException("expected name");
+        }
+        if (c != -1) {
+            unread();
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        final String cached = nameCache[slot];
+        if (cached != null && tokenEquals(cached)) {
+            return cached;
+        }
+        final String name = Attributes.intern(tokenToString());
+        nameCache[slot] = name;
+        return name;
+    }
+
+    private String readAttributeValue(final int quote) throws IOException {
+        tokenLength = 0;
+        tokenAscii = true;
+        int c;
+        while ((c = read()) != quote) {
+            if (c == -1) {
+                throw new IOException("unexpected end of stream in attribute value");
+            } else if (c == '<') {
+                throw new IOException("'<' is not allowed in attribute values");
+            } else if (c == '&') {
+                readEntity();
+            } else {
+                append(c);
+            }
+        }
+        return tokenToString();
+    }
+
+    private String readText(int c) throws IOException {
+        tokenLength = 0;
+        tokenAscii = true;
+        while (c != '<') {
+            if (c == -1) {
+                if (depth > 0) {
+                    throw new IOException("unexpected end of stream in character data");
+                }
+                break;
+            } else if (c == '&') {
+                readEntity();
+            } else {
+                append(c);
+            }
+            c = read();
+        }
+        if (c == '<') {
+            unread();
+        }
+        return tokenToString();
+    }
+
+    private void readEntity() throws IOException {
+        final StringBuilder entity = new StringBuilder();
+        int c;
+        while ((c = read()) != ';') {
+            if (c == -1 || entity.length() > 10) {
+                throw new IOException("invalid entity reference");
+            }
+            entity.append((char) c);
+        }
+        final String name = entity.toString();
+        switch (name) {
+            case "amp":
+                append('&');
+                return;
+            case "lt":
+                append('<');
+                return;
+            case "gt":
+                append('>');
+                return;
+            case "quot":
+                append('"');
+                return;
+            case "apos":
+                append('\'');
+                return;
+        }
+        final int codePoint;
+        try {
+            if (name.startsWith("#x")) {
+                codePoint = Integer.parseInt(name.substring(2), 16);
+            } else if (name.startsWith("#")) {
+                codePoint = Integer.parseInt(name.substring(1));
+            } else {
+                throw new IOException("entity references are not allowed in XMPP: " + name);
+            }
+        } catch (final NumberFormatException e) {
+            throw new IOException("invalid character reference " + name);
+        }
+        if (!Character.isValidCodePoint(codePoint)) {
+            throw new IOException("invalid character reference " + name);
+        }
+        final byte[] encoded =
+                new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+        for (final byte b : encoded) {
+            append(b & 0xff);
+        }
+    }
+
+    private void append(final int b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        if (b >= 0x80) {
+            tokenAscii = false;
+        }
+        token[tokenLength++] = (byte) b;
+    }
+
+    private boolean tokenEquals(final String name) {
+        if (name.length() != tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; ++i) {
+            if (name.charAt(i) != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String tokenToString() {
+        if (tokenAscii) {
+            return new String(token, 0, tokenLength, StandardCharsets.US_ASCII);
+        }
+        tokenAscii = true;
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace(final int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private int skipWhitespace(int c) throws IOException {
+        while (isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            final InputStream is = this.is;
+            if (is == null) {
+                return -1;
+            }
+            final int count = is.read(buffer, 0, buffer.length);
+            if (count <= 0) {
+                return -1;
+            }
+            position = 0;
+            limit = count;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private void unread() {
+        // only ever called directly after a successful read()
+        --position;
+    }
+}
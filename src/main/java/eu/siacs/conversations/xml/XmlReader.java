@@ -6,19 +6,24 @@ import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 
 import eu.siacs.conversations.Config;
 
-public class XmlReader implements Closeable {
+public class XmlReader extends AbstractXmlReader {
 	private final XmlPullParser parser;
 	private InputStream is;
 
 	public XmlReader() {
-		this.parser = Xml.newPullParser();
+		this(Xml.newPullParser());
+	}
+
+	// lets tests and benchmarks on the JVM bring their own parser
+	XmlReader(final XmlPullParser parser) {
+		this.parser = parser;
 		try {
 			this.parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
 		} catch (XmlPullParserException e) {
@@ -26,24 +31,26 @@ public class XmlReader implements Closeable {
 		}
 	}
 
+	@Override
 	public void setInputStream(InputStream inputStream) throws IOException {
 		if (inputStream == null) {
 			throw new IOException();
 		}
 		this.is = inputStream;
 		try {
-			parser.setInput(new InputStreamReader(this.is));
+			parser.setInput(new InputStreamReader(this.is, StandardCharsets.UTF_8));
 		} catch (XmlPullParserException e) {
 			throw new IOException("error resetting parser");
 		}
 	}
 
+	@Override
 	public void reset() throws IOException {
 		if (this.is == null) {
 			throw new IOException();
 		}
 		try {
-			parser.setInput(new InputStreamReader(this.is));
+			parser.setInput(new InputStreamReader(this.is, StandardCharsets.UTF_8));
 		} catch (XmlPullParserException e) {
 			throw new IOException("error resetting parser");
 		}
@@ -54,25 +61,29 @@ public class XmlReader implements Closeable {
 		this.is = null;
 	}
 
+	@Override
 	public Tag readTag() throws IOException {
 		try {
 			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
 				if (parser.getEventType() == XmlPullParser.START_TAG) {
 					Tag tag = Tag.start(parser.getName());
 					final String xmlns = parser.getNamespace();
-					for (int i = 0; i < parser.getAttributeCount(); ++i) {
+					final int attributeCount = parser.getAttributeCount();
+					final Attributes attributes = new Attributes(attributeCount + (xmlns != null ? 1 : 0));
+					for (int i = 0; i < attributeCount; ++i) {
 						final String prefix = parser.getAttributePrefix(i);
 						String name;
 						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
+							name = Attributes.intern(prefix+":"+parser.getAttributeName(i));
 						} else {
-							name = parser.getAttributeName(i);
+							name = Attributes.intern(parser.getAttributeName(i));
 						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
+						attributes.put(name,parser.getAttributeValue(i));
 					}
 					if (xmlns != null) {
-						tag.setAttribute("xmlns", xmlns);
+						attributes.put("xmlns", xmlns);
 					}
+					tag.setAttributes(attributes);
 					return tag;
 				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
 					return Tag.end(parser.getName());
@@ -86,31 +97,4 @@ public class XmlReader implements Closeable {
 		}
 		return null;
 	}
-
-	public Element readElement(Tag currentTag) throws IOException {
-		Element element = new Element(currentTag.getName());
-		element.setAttributes(currentTag.getAttributes());
-		Tag nextTag = this.readTag();
-		if (nextTag == null) {
-			throw new IOException("interrupted mid tag");
-		}
-		if (nextTag.isNo()) {
-			element.setContent(nextTag.getName());
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
-			}
-		}
-		while (!nextTag.isEnd(element.getName())) {
-			if (!nextTag.isNo()) {
-				Element child = this.readElement(nextTag);
-				element.addChild(child);
-			}
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
-			}
-		}
-		return element;
-	}
 }
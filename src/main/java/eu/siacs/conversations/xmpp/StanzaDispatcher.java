@@ -0,0 +1,238 @@
+package eu.siacs.conversations.xmpp;
+
+import android.util.Log;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+
+/**
+ * Hands parsed stanzas from the socket reader thread to a single handler thread per connection.
+ * Handlers run strictly in the order they were dispatched. The queue is bounded; once it is full
+ * the reader thread blocks, which in turn stops reading from the socket (backpressure).
+ */
+public class StanzaDispatcher {
+
+    private static final Task POISON = new Task(0, () -> {});
+
+    private final Account account;
+    private final Runnable onFailure;
+    private final LinkedBlockingQueue<Task> queue;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile Throwable failure = null;
+    private volatile boolean finished = false;
+
+    private final AtomicLong dispatched = new AtomicLong(0);
+    private final AtomicLong handled = new AtomicLong(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+    private final AtomicLong parseNanos = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong handleNanos = new AtomicLong(0);
+    private final AtomicLong maxHandleNanos = new AtomicLong(0);
+
+    private final Thread handlerThread =
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!isInterrupted()) {
+                            // once finished the queue is drained without waiting for more
+                            final Task task = finished ? queue.poll() : queue.take();
+                            if (task == null || task == POISON) {
+                                break;
+                            }
+                            if (!handle(task)) {
+                                break;
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        Log.d(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid()
+                                        + ": stanza dispatcher was interrupted");
+                    } finally {
+                        final int discarded = queue.size();
+                        queue.clear();
+                        if (discarded > 0) {
+                            Log.d(
+                                    Config.LOGTAG,
+                                    account.getJid().asBareJid()
+                                            + ": discarded "
+                                            + discarded
+                                            + " unhandled stanzas");
+                        }
+                        if (handled.get() > 0) {
+                            Log.d(
+                                    Config.LOGTAG,
+                                    account.getJid().asBareJid()
+                                            + ": stanza dispatcher finished. "
+                                            + getStatistics());
+                        }
+                        terminated.countDown();
+                    }
+                }
+            };
+
+    public StanzaDispatcher(final Account account, final int capacity, final Runnable onFailure) {
+        this.account = account;
+        this.onFailure = onFailure;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.handlerThread.setName("StanzaDispatcher(" + account.getJid().asBareJid() + ")");
+    }
+
+    public void start() {
+        this.handlerThread.start();
+    }
+
+    /**
+     * Queues a handler for execution on the dispatcher thread. Blocks while the queue is full.
+     *
+     * @param parseNanos time the reader thread spent building the stanza; used for statistics
+     */
+    public void dispatch(final long parseNanos, final Handler handler) throws IOException {
+        throwOnFailure();
+        if (finished) {
+            throw new IOException("stanza dispatcher has already been finished");
+        }
+        final Task task = new Task(System.nanoTime(), handler);
+        try {
+            queue.put(task);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for stanza dispatcher");
+        }
+        this.dispatched.incrementAndGet();
+        this.parseNanos.addAndGet(parseNanos);
+        final int depth = queue.size();
+        int max;
+        do {
+            max = maxQueueDepth.get();
+        } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    private boolean handle(final Task task) {
+        final long start = System.nanoTime();
+        waitNanos.addAndGet(start - task.enqueued);
+        try {
+            task.handler.handle();
+        } catch (final Throwable throwable) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": stanza handler failed ("
+                            + throwable.getClass().getSimpleName()
+                            + ")");
+            this.failure = throwable;
+            onFailure.run();
+            return false;
+        }
+        final long duration = System.nanoTime() - start;
+        handleNanos.addAndGet(duration);
+        long max;
+        do {
+            max = maxHandleNanos.get();
+        } while (duration > max && !maxHandleNanos.compareAndSet(max, duration));
+        handled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Rethrows an exception raised by a handler on the calling (reader) thread. Unchecked
+     * exceptions are rethrown as is to retain the behaviour of handling stanzas on the reader
+     * thread.
+     */
+    public void throwOnFailure() throws IOException {
+        final Throwable failure = this.failure;
+        if (failure == null) {
+            return;
+        }
+        Throwables.throwIfUnchecked(failure);
+        Throwables.throwIfInstanceOf(failure, IOException.class);
+        throw new IOException(failure);
+    }
+
+    public boolean isDispatcherThread() {
+        return Thread.currentThread() == handlerThread;
+    }
+
+    /**
+     * Handles all stanzas that have already been dispatched and then stops the thread. Does not
+     * block; use {@link #await(long, TimeUnit)} to wait for the queue to be drained and {@link
+     * #cancel()} to give up on it.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        // wakes up a handler thread waiting on an empty queue. If the queue is full the thread is
+        // busy and sees the flag before it would wait again
+        queue.offer(POISON);
+    }
+
+    /** Stops the thread and discards all stanzas that have not been handled yet. */
+    public void cancel() {
+        finished = true;
+        queue.clear();
+        handlerThread.interrupt();
+    }
+
+    public boolean await(final long timeout, final TimeUnit timeUnit) throws InterruptedException {
+        if (!handlerThread.isAlive() || isDispatcherThread()) {
+            return true;
+        }
+        return terminated.await(timeout, timeUnit);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public String getStatistics() {
+        final long handled = this.handled.get();
+        final long dispatched = Math.max(1, this.dispatched.get());
+        final long divisor = Math.max(1, handled);
+        return "dispatched="
+                + this.dispatched.get()
+                + ", handled="
+                + handled
+                + ", depth="
+                + queue.size()
+                + ", maxDepth="
+                + maxQueueDepth.get()
+                + ", avgParse="
+                + TimeUnit.NANOSECONDS.toMicros(parseNanos.get() / dispatched)
+                + "us, avgWait="
+                + TimeUnit.NANOSECONDS.toMicros(waitNanos.get() / divisor)
+                + "us, avgHandle="
+                + TimeUnit.NANOSECONDS.toMicros(handleNanos.get() / divisor)
+                + "us, maxHandle="
+                + TimeUnit.NANOSECONDS.toMillis(maxHandleNanos.get())
+                + "ms, totalHandle="
+                + TimeUnit.NANOSECONDS.toMillis(handleNanos.get())
+                + "ms";
+    }
+
+    public interface Handler {
+        void handle() throws IOException;
+    }
+
+    private static class Task {
+        private final long enqueued;
+        private final Handler handler;
+
+        private Task(final long enqueued, final Handler handler) {
+            this.enqueued = enqueued;
+            this.handler = handler;
+        }
+    }
+}
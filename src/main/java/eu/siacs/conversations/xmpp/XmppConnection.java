@@ -90,6 +90,8 @@ import eu.siacs.conversations.xml.LocalizedContent;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xml.Tag;
 import eu.siacs.conversations.xml.TagWriter;
+import eu.siacs.conversations.xml.AbstractXmlReader;
+import eu.siacs.conversations.xml.Utf8XmlReader;
 import eu.siacs.conversations.xml.XmlReader;
 import eu.siacs.conversations.xmpp.bind.Bind2;
 import eu.siacs.conversations.xmpp.forms.Data;
@@ -154,15 +156,16 @@ public class XmppConnection implements Runnable {
             new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
     private Socket socket;
-    private XmlReader tagReader;
+    private AbstractXmlReader tagReader;
     private TagWriter tagWriter = new TagWriter();
+    private StanzaDispatcher stanzaDispatcher = null;
     private boolean shouldAuthenticate = true;
     private boolean inSmacksSession = false;
     private boolean quickStartInProgress = false;
     private boolean isBound = false;
     private Element streamFeatures;
     private String streamId = null;
-    private int stanzasReceived = 0;
+    private volatile int stanzasReceived = 0;
     private int stanzasSent = 0;
     private int stanzasSentBeforeAuthentication;
     private long lastPacketReceived = 0;
@@ -488,13 +491,14 @@ public class XmppConnection implements Runnable {
             throw new InterruptedException();
         }
         this.socket = socket;
-        tagReader = new XmlReader();
+        tagReader = createXmlReader();
         if (tagWriter != null) {
             tagWriter.forceClose();
         }
         tagWriter = new TagWriter();
         tagWriter.setOutputStream(socket.getOutputStream());
         tagReader.setInputStream(socket.getInputStream());
+        startStanzaDispatcher();
         tagWriter.beginDocument();
         final boolean quickStart;
         if (socket instanceof SSLSocket) {
@@ -515,6 +519,55 @@ public class XmppConnection implements Runnable {
         return success;
     }
 
+    private AbstractXmlReader createXmlReader() {
+        if (account.isOptionSet(Account.OPTION_UTF8_XML_READER)) {
+            return new Utf8XmlReader();
+        } else {
+            return new XmlReader();
+        }
+    }
+
+    /**
+     * stanzas of the previous stream need to be handled (and counted) before we can tell the
+     * server how many stanzas we have handled when resuming
+     */
+    private void startStanzaDispatcher() throws InterruptedException {
+        final StanzaDispatcher previous = this.stanzaDispatcher;
+        if (previous != null) {
+            previous.finish();
+            if (!previous.await(Config.STANZA_DISPATCH_DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": previous stanza dispatcher did not finish in time. "
+                                + previous.getStatistics());
+                previous.cancel();
+            }
+        }
+        final StanzaDispatcher dispatcher =
+                new StanzaDispatcher(
+                        account, Config.STANZA_DISPATCH_QUEUE_CAPACITY, this::forceCloseSocket);
+        this.stanzaDispatcher = dispatcher;
+        dispatcher.start();
+    }
+
+    private void dispatch(final long parseNanos, final StanzaDispatcher.Handler handler)
+            throws IOException {
+        final StanzaDispatcher dispatcher = this.stanzaDispatcher;
+        if (dispatcher == null) {
+            handler.handle();
+        } else {
+            dispatcher.dispatch(parseNanos, handler);
+        }
+    }
+
+    private void throwOnDispatchFailure() throws IOException {
+        final StanzaDispatcher dispatcher = this.stanzaDispatcher;
+        if (dispatcher != null) {
+            dispatcher.throwOnFailure();
+        }
+    }
+
     private SSLSocketFactory getSSLSocketFactory()
             throws NoSuchAlgorithmException, KeyManagementException {
         final SSLContext sc = SSLSockets.getSSLContext();
@@ -557,6 +610,20 @@ public class XmppConnection implements Runnable {
     private void processStream() throws XmlPullParserException, IOException {
         final CountDownLatch streamCountDownLatch = new CountDownLatch(1);
         this.mStreamCountDownLatch = streamCountDownLatch;
+        final Tag lastTag;
+        try {
+            lastTag = processTags();
+        } catch (final IOException e) {
+            // a failing handler closes the socket; report its cause instead of the socket error
+            throwOnDispatchFailure();
+            throw e;
+        }
+        if (lastTag != null && lastTag.isEnd("stream")) {
+            streamCountDownLatch.countDown();
+        }
+    }
+
+    private Tag processTags() throws XmlPullParserException, IOException {
         Tag nextTag = tagReader.readTag();
         while (nextTag != null && !nextTag.isEnd("stream")) {
             if (nextTag.isStart("error")) {
@@ -598,58 +665,40 @@ public class XmppConnection implements Runnable {
                 processResumed(resumed);
             } else if (nextTag.isStart("r")) {
                 tagReader.readElement(nextTag);
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(
-                            Config.LOGTAG,
-                            account.getJid().asBareJid()
-                                    + ": acknowledging stanza #"
-                                    + this.stanzasReceived);
-                }
-                final AckPacket ack = new AckPacket(this.stanzasReceived);
-                tagWriter.writeStanzaAsync(ack);
+                // the ack has to wait until all stanzas received before the request are handled
+                final TagWriter currentTagWriter = this.tagWriter;
+                dispatch(
+                        0,
+                        () -> {
+                            if (Config.EXTENDED_SM_LOGGING) {
+                                Log.d(
+                                        Config.LOGTAG,
+                                        account.getJid().asBareJid()
+                                                + ": acknowledging stanza #"
+                                                + this.stanzasReceived);
+                            }
+                            // never acknowledge messages that could still be lost in a crash
+                            mXmppConnectionService.databaseBackend.commitMessages();
+                            final AckPacket ack = new AckPacket(this.stanzasReceived);
+                            currentTagWriter.writeStanzaAsync(ack);
+                        });
             } else if (nextTag.isStart("a")) {
-                boolean accountUiNeedsRefresh = false;
-                synchronized (NotificationService.CATCHUP_LOCK) {
-                    if (mWaitingForSmCatchup.compareAndSet(true, false)) {
-                        final int messageCount = mSmCatchupMessageCounter.get();
-                        final int pendingIQs = packetCallbacks.size();
-                        Log.d(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid()
-                                        + ": SM catchup complete (messages="
-                                        + messageCount
-                                        + ", pending IQs="
-                                        + pendingIQs
-                                        + ")");
-                        accountUiNeedsRefresh = true;
-                        if (messageCount > 0) {
-                            mXmppConnectionService
-                                    .getNotificationService()
-                                    .finishBacklog(true, account);
-                        }
-                    }
-                }
-                if (accountUiNeedsRefresh) {
-                    mXmppConnectionService.updateAccountUi();
+                if (mWaitingForSmCatchup.get()) {
+                    dispatch(0, this::processSmCatchupComplete);
                 }
                 final Element ack = tagReader.readElement(nextTag);
                 lastPacketReceived = SystemClock.elapsedRealtime();
-                final boolean acknowledgedMessages;
                 synchronized (this.mStanzaQueue) {
                     final Optional<Integer> serverSequence = ack.getOptionalIntAttribute("h");
                     if (serverSequence.isPresent()) {
-                        acknowledgedMessages = acknowledgeStanzaUpTo(serverSequence.get());
+                        acknowledgeStanzaUpTo(serverSequence.get());
                     } else {
-                        acknowledgedMessages = false;
                         Log.d(
                                 Config.LOGTAG,
                                 account.getJid().asBareJid()
                                         + ": server send ack without sequence number");
                     }
                 }
-                if (acknowledgedMessages) {
-                    mXmppConnectionService.updateConversationUi();
-                }
             } else if (nextTag.isStart("failed")) {
                 final Element failed = tagReader.readElement(nextTag);
                 processFailed(failed, true);
@@ -662,8 +711,35 @@ public class XmppConnection implements Runnable {
             }
             nextTag = tagReader.readTag();
         }
-        if (nextTag != null && nextTag.isEnd("stream")) {
-            streamCountDownLatch.countDown();
+        return nextTag;
+    }
+
+    private void processSmCatchupComplete() {
+        boolean accountUiNeedsRefresh = false;
+        synchronized (NotificationService.CATCHUP_LOCK) {
+            if (mWaitingForSmCatchup.compareAndSet(true, false)) {
+                final int messageCount = mSmCatchupMessageCounter.get();
+                final int pendingIQs = packetCallbacks.size();
+                final StanzaDispatcher dispatcher = this.stanzaDispatcher;
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": SM catchup complete (messages="
+                                + messageCount
+                                + ", pending IQs="
+                                + pendingIQs
+                                + ")"
+                                + (dispatcher == null ? "" : " " + dispatcher.getStatistics()));
+                accountUiNeedsRefresh = true;
+                if (messageCount > 0) {
+                    mXmppConnectionService
+                            .getNotificationService()
+                            .finishBacklog(true, account);
+                }
+            }
+        }
+        if (accountUiNeedsRefresh) {
+            mXmppConnectionService.updateAccountUi();
         }
     }
 
@@ -987,7 +1063,6 @@ public class XmppConnection implements Runnable {
             throw new StateChangingException(Account.State.INCOMPATIBLE_SERVER);
         }
         final ArrayList<AbstractAcknowledgeableStanza> failedStanzas = new ArrayList<>();
-        final boolean acknowledgedMessages;
         synchronized (this.mStanzaQueue) {
             if (serverCount < stanzasSent) {
                 Log.d(
@@ -997,15 +1072,12 @@ public class XmppConnection implements Runnable {
             } else {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": session resumed");
             }
-            acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
+            acknowledgeStanzaUpTo(serverCount);
             for (int i = 0; i < this.mStanzaQueue.size(); ++i) {
                 failedStanzas.add(mStanzaQueue.valueAt(i));
             }
             mStanzaQueue.clear();
         }
-        if (acknowledgedMessages) {
-            mXmppConnectionService.updateConversationUi();
-        }
         Log.d(
                 Config.LOGTAG,
                 account.getJid().asBareJid() + ": resending " + failedStanzas.size() + " stanzas");
@@ -1038,12 +1110,8 @@ public class XmppConnection implements Runnable {
                     account.getJid().asBareJid()
                             + ": resumption failed but server acknowledged stanza #"
                             + serverCount.get());
-            final boolean acknowledgedMessages;
             synchronized (this.mStanzaQueue) {
-                acknowledgedMessages = acknowledgeStanzaUpTo(serverCount.get());
-            }
-            if (acknowledgedMessages) {
-                mXmppConnectionService.updateConversationUi();
+                acknowledgeStanzaUpTo(serverCount.get());
             }
         } else {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": resumption failed");
@@ -1054,6 +1122,10 @@ public class XmppConnection implements Runnable {
         }
     }
 
+    /**
+     * Removes acknowledged stanzas from the queue. The acknowledged listener updates the status of
+     * the corresponding messages and notifies the UI about each of them.
+     */
     private boolean acknowledgeStanzaUpTo(final int serverCount) {
         if (serverCount > stanzasSent) {
             Log.e(
@@ -1090,8 +1162,10 @@ public class XmppConnection implements Runnable {
         return acknowledgedMessages;
     }
 
-    private @NonNull Element processPacket(final Tag currentTag, final int packetType)
+    private void processPacket(
+            final Tag currentTag, final int packetType, final PacketHandler handler)
             throws IOException {
+        final long start = System.nanoTime();
         final Element element;
         switch (packetType) {
             case PACKET_IQ:
@@ -1124,31 +1198,55 @@ public class XmppConnection implements Runnable {
             resetStreamId();
             throw new IOException("time to restart the session. cant handle >2 billion pcks");
         }
-        if (inSmacksSession) {
-            ++stanzasReceived;
-        } else if (features.sm()) {
-            Log.d(
-                    Config.LOGTAG,
-                    account.getJid().asBareJid()
-                            + ": not counting stanza("
-                            + element.getClass().getSimpleName()
-                            + "). Not in smacks session.");
-        }
         lastPacketReceived = SystemClock.elapsedRealtime();
         if (Config.BACKGROUND_STANZA_LOGGING && mXmppConnectionService.checkListeners()) {
             Log.d(Config.LOGTAG, "[background stanza] " + element);
         }
+        final Element packet;
         if (element instanceof IqPacket
                 && (((IqPacket) element).getType() == IqPacket.TYPE.SET)
                 && element.hasChild("jingle", Namespace.JINGLE)) {
-            return JinglePacket.upgrade((IqPacket) element);
+            packet = JinglePacket.upgrade((IqPacket) element);
+        } else {
+            packet = element;
+        }
+        final long parseNanos = System.nanoTime() - start;
+        // whether a stanza counts is decided when it is read; it is counted once it has been handled
+        final boolean counted;
+        if (inSmacksSession) {
+            counted = true;
         } else {
-            return element;
+            counted = false;
+            if (features.sm()) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": not counting stanza("
+                                + element.getClass().getSimpleName()
+                                + "). Not in smacks session.");
+            }
         }
+        final StanzaDispatcher dispatcher = this.stanzaDispatcher;
+        dispatch(
+                parseNanos,
+                () -> {
+                    handler.handle(packet);
+                    // a dispatcher that has been replaced belongs to a stream we no longer resume
+                    if (counted && dispatcher == this.stanzaDispatcher) {
+                        ++stanzasReceived;
+                    }
+                });
+    }
+
+    private interface PacketHandler {
+        void handle(Element packet) throws IOException;
     }
 
     private void processIq(final Tag currentTag) throws IOException {
-        final IqPacket packet = (IqPacket) processPacket(currentTag, PACKET_IQ);
+        processPacket(currentTag, PACKET_IQ, packet -> processIq((IqPacket) packet));
+    }
+
+    private void processIq(final IqPacket packet) throws IOException {
         if (!packet.valid()) {
             Log.e(
                     Config.LOGTAG,
@@ -1208,7 +1306,11 @@ public class XmppConnection implements Runnable {
     }
 
     private void processMessage(final Tag currentTag) throws IOException {
-        final MessagePacket packet = (MessagePacket) processPacket(currentTag, PACKET_MESSAGE);
+        processPacket(
+                currentTag, PACKET_MESSAGE, packet -> processMessage((MessagePacket) packet));
+    }
+
+    private void processMessage(final MessagePacket packet) {
         if (!packet.valid()) {
             Log.e(
                     Config.LOGTAG,
@@ -1223,7 +1325,11 @@ public class XmppConnection implements Runnable {
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
-        PresencePacket packet = (PresencePacket) processPacket(currentTag, PACKET_PRESENCE);
+        processPacket(
+                currentTag, PACKET_PRESENCE, packet -> processPresence((PresencePacket) packet));
+    }
+
+    private void processPresence(final PresencePacket packet) {
         if (!packet.valid()) {
             Log.e(
                     Config.LOGTAG,
@@ -1372,6 +1478,7 @@ public class XmppConnection implements Runnable {
                                 + ": resuming after stanza #"
                                 + stanzasReceived);
             }
+            mXmppConnectionService.databaseBackend.commitMessages();
             final ResumePacket resume = new ResumePacket(this.streamId, stanzasReceived);
             this.mSmCatchupMessageCounter.set(0);
             this.mWaitingForSmCatchup.set(true);
@@ -1548,6 +1655,7 @@ public class XmppConnection implements Runnable {
             authenticate.addChild(generateBindRequest(bind));
         }
         if (inlineStreamManagement && streamId != null) {
+            mXmppConnectionService.databaseBackend.commitMessages();
             final ResumePacket resume = new ResumePacket(this.streamId, stanzasReceived);
             this.mSmCatchupMessageCounter.set(0);
             this.mWaitingForSmCatchup.set(true);
@@ -2364,6 +2472,10 @@ public class XmppConnection implements Runnable {
     private void forceCloseSocket() {
         FileBackend.close(this.socket);
         FileBackend.close(this.tagReader);
+        final StanzaDispatcher dispatcher = this.stanzaDispatcher;
+        if (dispatcher != null) {
+            dispatcher.finish();
+        }
     }
 
     public void interrupt() {
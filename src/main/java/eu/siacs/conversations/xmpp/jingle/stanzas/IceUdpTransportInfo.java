@@ -13,13 +13,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 
+import eu.siacs.conversations.xml.Attributes;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.jingle.SessionDescription;
@@ -94,7 +94,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
 
     public IceUdpTransportInfo cloneWrapper() {
         final IceUdpTransportInfo transportInfo = new IceUdpTransportInfo();
-        transportInfo.setAttributes(new Hashtable<>(getAttributes()));
+        transportInfo.setAttributes(new Attributes(getAttributes()));
         return transportInfo;
     }
 
@@ -106,7 +106,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
             if (child.getName().equals("fingerprint")
                     && Namespace.JINGLE_APPS_DTLS.equals(child.getNamespace())) {
                 final Fingerprint fingerprint = new Fingerprint();
-                fingerprint.setAttributes(new Hashtable<>(child.getAttributes()));
+                fingerprint.setAttributes(new Attributes(child.getAttributes()));
                 fingerprint.setContent(child.getContent());
                 fingerprint.setAttribute("setup", setup.toString().toLowerCase(Locale.ROOT));
                 transportInfo.addChild(fingerprint);
@@ -350,13 +350,13 @@ public class RtpDescription extends GenericDescription {
 
         public void addChildren(final List<Element> children) {
             if (children != null) {
-                this.children.addAll(children);
+                mutableChildren().addAll(children);
             }
         }
 
         public void addParameters(List<Parameter> parameters) {
             if (parameters != null) {
-                this.children.addAll(parameters);
+                mutableChildren().addAll(parameters);
             }
         }
     }
@@ -655,7 +655,7 @@ public class RtpDescription extends GenericDescription {
 
     private void addChildren(List<Element> elements) {
         if (elements != null) {
-            this.children.addAll(elements);
+            mutableChildren().addAll(elements);
         }
     }
 }
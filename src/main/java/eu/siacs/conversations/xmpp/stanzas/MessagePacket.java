@@ -25,12 +25,12 @@ public class MessagePacket extends AbstractAcknowledgeableStanza {
 		this.children.remove(findChild("body"));
 		Element body = new Element("body");
 		body.setContent(text);
-		this.children.add(0, body);
+		mutableChildren().add(0, body);
 	}
 
 	public void setAxolotlMessage(Element axolotlMessage) {
 		this.children.remove(findChild("body"));
-		this.children.add(0, axolotlMessage);
+		mutableChildren().add(0, axolotlMessage);
 	}
 
 	public void setType(int type) {
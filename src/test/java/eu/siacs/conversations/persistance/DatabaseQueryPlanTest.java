@@ -0,0 +1,215 @@
+package eu.siacs.conversations.persistance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Runs the queries that DatabaseBackend issues for every conversation or account against the
+ * schema it creates and fails if SQLite would scan or sort the messages table to answer them.
+ * getLastMessageReceived is not checked; it walks message_time_index from the newest message and
+ * stops at the first match.
+ */
+public class DatabaseQueryPlanTest {
+
+    private static final int ACCOUNTS = 3;
+    private static final int CONVERSATIONS = 60;
+    private static final int MESSAGES = 24_000;
+
+    // 'SCAN TABLE' before SQLite 3.36; walking all of an index is a scan as well
+    private static final Pattern SLOW_PLAN =
+            Pattern.compile(
+                    "SCAN (TABLE )?" + Message.TABLENAME + "\\b.*|USE TEMP B-TREE FOR ORDER BY");
+
+    private Connection connection;
+
+    @Before
+    public void createDatabase() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(DatabaseBackend.CREATE_ACCOUNTS_TABLE);
+            statement.execute(DatabaseBackend.CREATE_CONVERSATIONS_TABLE);
+            statement.execute(DatabaseBackend.CREATE_MESSAGES_TABLE);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_TIME_INDEX);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_FINGERPRINT_TIME_INDEX);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_DELETED_INDEX);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
+            statement.execute(DatabaseBackend.CREATE_MESSAGE_TYPE_INDEX);
+        }
+        seed();
+    }
+
+    @After
+    public void closeDatabase() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void queryPlans() throws SQLException {
+        assertIndexed();
+    }
+
+    /** Statistics as left behind by an ANALYZE or a PRAGMA optimize must not change the plans. */
+    @Test
+    public void queryPlansAfterAnalyze() throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("ANALYZE");
+        }
+        assertIndexed();
+    }
+
+    private void assertIndexed() throws SQLException {
+        assertIndexed(DatabaseBackend.SELECT_MESSAGES, 50, "conversation-7", "50");
+        assertIndexed(
+                DatabaseBackend.SELECT_MESSAGES_BEFORE,
+                50,
+                "conversation-7",
+                String.valueOf(timeSent(MESSAGES / 2)),
+                "50");
+        assertIndexed(
+                DatabaseBackend.SELECT_RELATIVE_FILE_PATHS,
+                MESSAGES / CONVERSATIONS / 10,
+                "account-1",
+                "contact-7@example.com",
+                "contact-7@example.com/%");
+        assertIndexed(
+                DatabaseBackend.SELECT_LAST_TIME_FINGERPRINT_USED, 1, "account-1", "fingerprint-7");
+    }
+
+    private void assertIndexed(final String query, final int expectedRows, final String... args)
+            throws SQLException {
+        final List<String> slow = new ArrayList<>();
+        try (final ResultSet plan = query("EXPLAIN QUERY PLAN " + query, args)) {
+            while (plan.next()) {
+                final String detail = plan.getString("detail");
+                if (SLOW_PLAN.matcher(detail).matches()) {
+                    slow.add(detail);
+                }
+            }
+        }
+        if (!slow.isEmpty()) {
+            fail(slow + " for " + query);
+        }
+        // the plan is only worth something if the query finds what the caller looks for
+        int rows = 0;
+        try (final ResultSet result = query(query, args)) {
+            while (result.next()) {
+                ++rows;
+            }
+        }
+        assertEquals(query, expectedRows, rows);
+    }
+
+    private ResultSet query(final String query, final String... args) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(query);
+        statement.closeOnCompletion();
+        for (int i = 0; i < args.length; ++i) {
+            // Android binds every argument of a raw query as text
+            statement.setString(i + 1, args[i]);
+        }
+        return statement.executeQuery();
+    }
+
+    private void seed() throws SQLException {
+        connection.setAutoCommit(false);
+        try (final PreparedStatement account =
+                        connection.prepareStatement(
+                                "insert into "
+                                        + Account.TABLENAME
+                                        + "("
+                                        + Account.UUID
+                                        + ","
+                                        + Account.USERNAME
+                                        + ") values(?,?)");
+                final PreparedStatement conversation =
+                        connection.prepareStatement(
+                                "insert into "
+                                        + Conversation.TABLENAME
+                                        + "("
+                                        + Conversation.UUID
+                                        + ","
+                                        + Conversation.ACCOUNT
+                                        + ","
+                                        + Conversation.CONTACTJID
+                                        + ","
+                                        + Conversation.MODE
+                                        + ") values(?,?,?,?)");
+                final PreparedStatement message =
+                        connection.prepareStatement(
+                                "insert into "
+                                        + Message.TABLENAME
+                                        + "("
+                                        + Message.UUID
+                                        + ","
+                                        + Message.CONVERSATION
+                                        + ","
+                                        + Message.TIME_SENT
+                                        + ","
+                                        + Message.TYPE
+                                        + ","
+                                        + Message.RELATIVE_FILE_PATH
+                                        + ","
+                                        + Message.FINGERPRINT
+                                        + ","
+                                        + Message.STATUS
+                                        + ","
+                                        + Message.SERVER_MSG_ID
+                                        + ") values(?,?,?,?,?,?,?,?)")) {
+            for (int i = 0; i < ACCOUNTS; ++i) {
+                account.setString(1, "account-" + i);
+                account.setString(2, "user" + i);
+                account.executeUpdate();
+            }
+            for (int i = 0; i < CONVERSATIONS; ++i) {
+                conversation.setString(1, "conversation-" + i);
+                conversation.setString(2, "account-" + (i % ACCOUNTS));
+                conversation.setString(3, "contact-" + i + "@example.com");
+                conversation.setInt(4, i % 5 == 0 ? 1 : 0);
+                conversation.executeUpdate();
+            }
+            for (int i = 0; i < MESSAGES; ++i) {
+                final int conversationIndex = i % CONVERSATIONS;
+                final boolean file = (i / CONVERSATIONS) % 10 == 0;
+                message.setString(1, "message-" + i);
+                message.setString(2, "conversation-" + conversationIndex);
+                message.setLong(3, timeSent(i));
+                message.setInt(4, file ? Message.TYPE_FILE : Message.TYPE_TEXT);
+                message.setString(5, file ? "file-" + i + ".jpg" : null);
+                message.setString(6, i % 100 == 7 ? "fingerprint-7" : null);
+                message.setInt(7, i % 2 == 0 ? Message.STATUS_RECEIVED : Message.STATUS_SEND);
+                message.setString(8, "stanza-" + i);
+                message.addBatch();
+            }
+            message.executeBatch();
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+        try (final ResultSet count = query("select count(*) from " + Message.TABLENAME)) {
+            assertTrue(count.next());
+            assertEquals(MESSAGES, count.getInt(1));
+        }
+    }
+
+    private static long timeSent(final int index) {
+        return 1_600_000_000_000L + index * 60_000L;
+    }
+}
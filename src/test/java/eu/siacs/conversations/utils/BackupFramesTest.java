@@ -0,0 +1,186 @@
+package eu.siacs.conversations.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+
+public class BackupFramesTest {
+
+    private static final byte[] KEY = bytes(32, 1);
+    private static final byte[] IV = bytes(12, 2);
+
+    @Test
+    public void roundTripEmpty() throws IOException {
+        assertArrayEquals(new byte[0], read(write(new byte[0]), KEY));
+    }
+
+    @Test
+    public void roundTripSeveralFrames() throws IOException {
+        // incompressible and compressible parts, neither aligned to the chunk size
+        final byte[] plain = new byte[3 * 1024 * 1024 + 12345];
+        final Random random = new Random(42);
+        for (int i = 0; i < plain.length; ++i) {
+            plain[i] = i < plain.length / 2 ? (byte) random.nextInt() : (byte) (i % 7);
+        }
+        final byte[] sealed = write(plain);
+        assertTrue(frames(sealed).size() >= 4);
+        assertArrayEquals(plain, read(sealed, KEY));
+    }
+
+    @Test
+    public void singleByteWrites() throws IOException {
+        final byte[] plain = "hello backup".getBytes();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final OutputStream frames = new BackupFrames.FrameOutputStream(out, KEY, IV)) {
+            for (final byte b : plain) {
+                frames.write(b);
+            }
+        }
+        final InputStream in =
+                new BackupFrames.FrameInputStream(
+                        new ByteArrayInputStream(out.toByteArray()), KEY, IV);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            result.write(b);
+        }
+        in.close();
+        assertArrayEquals(plain, result.toByteArray());
+    }
+
+    @Test
+    public void wrongPassword() throws IOException {
+        final byte[] sealed = write(bytes(1000, 3));
+        try {
+            read(sealed, bytes(32, 9));
+            fail("decrypted with the wrong key");
+        } catch (final IOException e) {
+            assertTrue(e.getCause() instanceof BadPaddingException);
+        }
+    }
+
+    @Test
+    public void reorderedFrames() throws IOException {
+        final List<byte[]> frames = frames(write(largePlain()));
+        final byte[] first = frames.get(0);
+        frames.set(0, frames.get(1));
+        frames.set(1, first);
+        assertRejected(join(frames));
+    }
+
+    @Test
+    public void truncatedAfterFrame() throws IOException {
+        final List<byte[]> frames = frames(write(largePlain()));
+        frames.remove(frames.size() - 1);
+        assertRejected(join(frames));
+    }
+
+    @Test
+    public void truncatedWithinFrame() throws IOException {
+        final byte[] sealed = write(largePlain());
+        assertRejected(Arrays.copyOf(sealed, sealed.length - 100));
+    }
+
+    @Test
+    public void flippedLastFlag() throws IOException {
+        final List<byte[]> frames = frames(write(largePlain()));
+        frames.get(0)[0] = 1;
+        assertRejected(join(frames));
+    }
+
+    @Test
+    public void modifiedCipherText() throws IOException {
+        final byte[] sealed = write(largePlain());
+        sealed[sealed.length / 2] ^= 1;
+        assertRejected(sealed);
+    }
+
+    @Test
+    public void invalidLengths() {
+        for (final int length : new int[] {-1, 0, 15, Integer.MAX_VALUE, 2 * 1024 * 1024}) {
+            final byte[] sealed = ByteBuffer.allocate(5).put((byte) 1).putInt(length).array();
+            assertRejected(sealed);
+        }
+    }
+
+    private static void assertRejected(final byte[] sealed) {
+        try {
+            read(sealed, KEY);
+            fail("accepted a tampered backup");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] largePlain() {
+        final byte[] plain = new byte[2 * 1024 * 1024 + 1];
+        new Random(7).nextBytes(plain);
+        return plain;
+    }
+
+    private static byte[] write(final byte[] plain) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final OutputStream frames = new BackupFrames.FrameOutputStream(out, KEY, IV)) {
+            // odd sized writes to cross chunk boundaries
+            for (int offset = 0; offset < plain.length; offset += 100_003) {
+                frames.write(plain, offset, Math.min(100_003, plain.length - offset));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] read(final byte[] sealed, final byte[] key) throws IOException {
+        try (final InputStream in =
+                new BackupFrames.FrameInputStream(new ByteArrayInputStream(sealed), key, IV)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static List<byte[]> frames(final byte[] sealed) {
+        final ByteBuffer buffer = ByteBuffer.wrap(sealed);
+        final List<byte[]> frames = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            final int start = buffer.position();
+            buffer.get();
+            final int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+            frames.add(Arrays.copyOfRange(sealed, start, buffer.position()));
+        }
+        return frames;
+    }
+
+    private static byte[] join(final List<byte[]> frames) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] frame : frames) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(final int length, final int seed) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+package eu.siacs.conversations.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class BackupRowsTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BackupRows.Writer writer = new BackupRows.Writer(out);
+        writer.table("messages", new String[] {"uuid", "body", "timeSent", "ratio", "blob"});
+        writer.row(new Object[] {"a", "grüße 😀", 1234567890123L, 0.5d, new byte[] {1, 2}});
+        writer.row(new Object[] {"b", null, -1L, null, new byte[0]});
+        writer.table("accounts", new String[] {"uuid"});
+        writer.row(new Object[] {"c"});
+        writer.end();
+
+        final BackupRows.Reader reader =
+                new BackupRows.Reader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals("messages", reader.getTable());
+        assertArrayEquals(
+                new String[] {"uuid", "body", "timeSent", "ratio", "blob"}, reader.getColumns());
+        final Object[] first = read(reader);
+        assertEquals("a", first[0]);
+        assertEquals("grüße 😀", first[1]);
+        assertEquals(1234567890123L, first[2]);
+        assertEquals(0.5d, first[3]);
+        assertArrayEquals(new byte[] {1, 2}, (byte[]) first[4]);
+        assertTrue(reader.next());
+        final Object[] second = read(reader);
+        assertEquals(Arrays.asList("b", null, -1L, null), Arrays.asList(second).subList(0, 4));
+        assertArrayEquals(new byte[0], (byte[]) second[4]);
+        assertTrue(reader.next());
+        assertEquals("accounts", reader.getTable());
+        assertEquals("c", read(reader)[0]);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void columnCountMismatch() throws IOException {
+        final BackupRows.Writer writer = new BackupRows.Writer(new ByteArrayOutputStream());
+        writer.table("accounts", new String[] {"uuid", "username"});
+        try {
+            writer.row(new Object[] {"a"});
+            fail("wrote a row with too few values");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownRecord() throws IOException {
+        new BackupRows.Reader(new ByteArrayInputStream(new byte[] {7})).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void missingEnd() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BackupRows.Writer writer = new BackupRows.Writer(out);
+        writer.table("accounts", new String[] {"uuid"});
+        writer.row(new Object[] {"a"});
+        final BackupRows.Reader reader =
+                new BackupRows.Reader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.next());
+        read(reader);
+        reader.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedValue() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BackupRows.Writer writer = new BackupRows.Writer(out);
+        writer.table("accounts", new String[] {"uuid"});
+        writer.row(new Object[] {"abcdef"});
+        writer.end();
+        final byte[] bytes = out.toByteArray();
+        final BackupRows.Reader reader =
+                new BackupRows.Reader(
+                        new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 4)));
+        assertTrue(reader.next());
+        read(reader);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeLength() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BackupRows.Writer writer = new BackupRows.Writer(out);
+        writer.table("accounts", new String[] {"uuid"});
+        writer.row(new Object[] {"a"});
+        final byte[] bytes = out.toByteArray();
+        // the length of the text value follows its type byte
+        Arrays.fill(bytes, bytes.length - 5, bytes.length - 1, (byte) 0xff);
+        final BackupRows.Reader reader = new BackupRows.Reader(new ByteArrayInputStream(bytes));
+        assertTrue(reader.next());
+        read(reader);
+    }
+
+    private static Object[] read(final BackupRows.Reader reader) throws IOException {
+        final Object[] row = new Object[reader.getColumns().length];
+        reader.read(
+                new BackupRows.Values() {
+                    @Override
+                    public void putNull(final int index) {
+                        row[index - 1] = null;
+                    }
+
+                    @Override
+                    public void putLong(final int index, final long value) {
+                        row[index - 1] = value;
+                    }
+
+                    @Override
+                    public void putDouble(final int index, final double value) {
+                        row[index - 1] = value;
+                    }
+
+                    @Override
+                    public void putString(final int index, final String value) {
+                        row[index - 1] = value;
+                    }
+
+                    @Override
+                    public void putBlob(final int index, final byte[] value) {
+                        row[index - 1] = value;
+                    }
+                });
+        return row;
+    }
+}
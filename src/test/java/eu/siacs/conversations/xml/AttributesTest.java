@@ -0,0 +1,117 @@
+package eu.siacs.conversations.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class AttributesTest {
+
+    @Test
+    public void putGetAndReplace() {
+        final Attributes attributes = new Attributes();
+        assertNull(attributes.put("id", "1"));
+        assertNull(attributes.put("type", "chat"));
+        assertEquals("1", attributes.put("id", "2"));
+        assertEquals(2, attributes.size());
+        assertEquals("2", attributes.get("id"));
+        // a key that is equal but not the same instance
+        assertEquals("chat", attributes.get(new String("type")));
+        assertNull(attributes.get("to"));
+        assertNull(attributes.get(null));
+        assertFalse(attributes.containsKey("to"));
+    }
+
+    @Test
+    public void keepsInsertionOrder() {
+        final Attributes attributes = new Attributes(2);
+        final List<String> keys = Arrays.asList("to", "from", "id", "type", "xml:lang", "xmlns");
+        for (final String key : keys) {
+            attributes.put(key, key.toUpperCase());
+        }
+        final List<String> iterated = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+            iterated.add(entry.getKey());
+            assertEquals(entry.getKey().toUpperCase(), entry.getValue());
+        }
+        assertEquals(keys, iterated);
+        for (int i = 0; i < keys.size(); ++i) {
+            assertEquals(keys.get(i), attributes.keyAt(i));
+            assertEquals(keys.get(i).toUpperCase(), attributes.valueAt(i));
+        }
+    }
+
+    @Test
+    public void remove() {
+        final Attributes attributes = new Attributes();
+        attributes.put("a", "1");
+        attributes.put("b", "2");
+        attributes.put("c", "3");
+        assertEquals("2", attributes.remove("b"));
+        assertNull(attributes.remove("b"));
+        assertEquals(2, attributes.size());
+        assertEquals("c", attributes.keyAt(1));
+        final Iterator<Map.Entry<String, String>> iterator = attributes.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+        assertEquals("c", iterator.next().getKey());
+        assertFalse(iterator.hasNext());
+        assertEquals(1, attributes.size());
+        attributes.clear();
+        assertTrue(attributes.isEmpty());
+    }
+
+    @Test
+    public void rejectsNull() {
+        final Attributes attributes = new Attributes();
+        try {
+            attributes.put(null, "1");
+            fail("accepted a null key");
+        } catch (final NullPointerException e) {
+            // expected
+        }
+        try {
+            attributes.put("id", null);
+            fail("accepted a null value");
+        } catch (final NullPointerException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void failsFast() {
+        final Attributes attributes = new Attributes();
+        attributes.put("a", "1");
+        attributes.put("b", "2");
+        final Iterator<Map.Entry<String, String>> iterator = attributes.entrySet().iterator();
+        iterator.next();
+        attributes.put("c", "3");
+        iterator.next();
+    }
+
+    @Test
+    public void equalsOtherMaps() {
+        final Map<String, String> map = new HashMap<>();
+        map.put("id", "1");
+        map.put("type", "chat");
+        final Attributes copy = new Attributes(map);
+        assertEquals(map, copy);
+        assertEquals(copy, map);
+        assertEquals(map.hashCode(), copy.hashCode());
+        final Attributes second = new Attributes(copy);
+        second.put("id", "2");
+        assertEquals("1", copy.get("id"));
+        assertEquals("2", second.get("id"));
+    }
+}
@@ -0,0 +1,106 @@
+package eu.siacs.conversations.xml;
+
+import org.kxml2.io.KXmlParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Compares the throughput of {@link Utf8XmlReader} with {@link XmlReader} on top of KXmlParser,
+ * which is what Android's Xml.newPullParser() is based on. This is not a unit test; run {@link
+ * #main(String[])} with the test classpath. The readers are checked to produce the same tags
+ * before anything is measured.
+ */
+public class Utf8XmlReaderBenchmark {
+
+    private static final int STANZAS = 50_000;
+    private static final int WARM_UP_RUNS = 10;
+    private static final int RUNS = 10;
+
+    public static void main(final String[] args) throws IOException {
+        final byte[] stream = stream();
+        final long expected = checksum(new Utf8XmlReader(), stream);
+        if (checksum(new XmlReader(new KXmlParser()), stream) != expected) {
+            throw new IllegalStateException("readers do not agree on the tags of the stream");
+        }
+        System.out.printf(
+                "%d stanzas, %.1f MB, median of %d runs%n", STANZAS, stream.length / 1e6, RUNS);
+        // alternate the readers so both see the same state of the JIT and the heap
+        final long[] utf8 = new long[RUNS];
+        final long[] pull = new long[RUNS];
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; ++run) {
+            final long utf8Nanos = read(new Utf8XmlReader(), stream);
+            final long pullNanos = read(new XmlReader(new KXmlParser()), stream);
+            if (run >= WARM_UP_RUNS) {
+                utf8[run - WARM_UP_RUNS] = utf8Nanos;
+                pull[run - WARM_UP_RUNS] = pullNanos;
+            }
+        }
+        report("Utf8XmlReader", stream.length, utf8);
+        report("XmlReader (KXmlParser)", stream.length, pull);
+    }
+
+    private static byte[] stream() {
+        final StringBuilder builder =
+                new StringBuilder(
+                        "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                                + " xmlns:stream='http://etherx.jabber.org/streams'"
+                                + " version='1.0'>");
+        for (int i = 0; i < STANZAS; ++i) {
+            builder.append("<message from='alice@example.com/phone' to='bob@example.org'")
+                    .append(" type='chat' id='m")
+                    .append(i)
+                    .append("'><body>Hello Bob, how are you? grüße 😀 &amp; more text</body>")
+                    .append("<active xmlns='http://jabber.org/protocol/chatstates'/>")
+                    .append("<stanza-id xmlns='urn:xmpp:sid:0' by='bob@example.org' id='s")
+                    .append(i)
+                    .append("'/></message>")
+                    .append("<presence from='carol@example.net/laptop'><show>away</show>")
+                    .append("<c xmlns='http://jabber.org/protocol/caps' hash='sha-1'")
+                    .append(" node='https://conversations.im' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/>")
+                    .append("</presence>");
+        }
+        builder.append("</stream:stream>");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long read(final AbstractXmlReader reader, final byte[] stream)
+            throws IOException {
+        reader.setInputStream(new ByteArrayInputStream(stream));
+        final long start = System.nanoTime();
+        int tags = 0;
+        while (reader.readTag() != null) {
+            ++tags;
+        }
+        final long nanos = System.nanoTime() - start;
+        if (tags == 0) {
+            throw new IllegalStateException();
+        }
+        return nanos;
+    }
+
+    private static long checksum(final AbstractXmlReader reader, final byte[] stream)
+            throws IOException {
+        reader.setInputStream(new ByteArrayInputStream(stream));
+        long checksum = 0;
+        Tag tag;
+        while ((tag = reader.readTag()) != null) {
+            checksum = 31 * checksum + (tag.isNo() ? 1 : tag.isEnd(tag.getName()) ? 2 : 3);
+            checksum = 31 * checksum + tag.getName().hashCode();
+            // the readers do not agree on the position of xmlns, the map hash ignores the order
+            checksum = 31 * checksum + Objects.hashCode(tag.getAttributes());
+        }
+        return checksum;
+    }
+
+    private static void report(final String name, final int bytes, final long[] nanos) {
+        Arrays.sort(nanos);
+        final long median = nanos[nanos.length / 2];
+        System.out.printf(
+                "%-24s %6.1f MB/s (%.1f ms, best %.1f ms)%n",
+                name, bytes / 1e6 / (median / 1e9), median / 1e6, nanos[0] / 1e6);
+    }
+}
@@ -0,0 +1,183 @@
+package eu.siacs.conversations.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class Utf8XmlReaderTest {
+
+    private static final String STREAM_START =
+            "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                    + " xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    @Test
+    public void namespaces() throws IOException {
+        final Utf8XmlReader reader =
+                reader(
+                        STREAM_START
+                                + "<message to='a@b'><body>hi</body>"
+                                + "<x:query xmlns:x='urn:x'><item xml:lang='en'/></x:query>"
+                                + "</message></stream:stream>");
+        assertStart(reader.readTag(), "stream", "http://etherx.jabber.org/streams");
+        final Tag message = reader.readTag();
+        assertStart(message, "message", "jabber:client");
+        assertEquals("a@b", message.getAttribute("to"));
+        assertStart(reader.readTag(), "body", "jabber:client");
+        assertText(reader.readTag(), "hi");
+        assertEnd(reader.readTag(), "body");
+        assertStart(reader.readTag(), "query", "urn:x");
+        final Tag item = reader.readTag();
+        // the default namespace is not affected by a prefixed declaration
+        assertStart(item, "item", "jabber:client");
+        assertEquals("en", item.getAttribute("xml:lang"));
+        assertEnd(reader.readTag(), "item");
+        assertEnd(reader.readTag(), "query");
+        assertEnd(reader.readTag(), "message");
+        assertEnd(reader.readTag(), "stream");
+        assertNull(reader.readTag());
+    }
+
+    @Test
+    public void namespaceScope() throws IOException {
+        final Utf8XmlReader reader =
+                reader(STREAM_START + "<iq xmlns='urn:a'/><iq><x:y xmlns:x='urn:b'/></iq>");
+        reader.readTag();
+        assertStart(reader.readTag(), "iq", "urn:a");
+        assertEnd(reader.readTag(), "iq");
+        assertStart(reader.readTag(), "iq", "jabber:client");
+        assertStart(reader.readTag(), "y", "urn:b");
+        assertEnd(reader.readTag(), "y");
+        assertEnd(reader.readTag(), "iq");
+        expectFailure("<a><x:b/></a>");
+    }
+
+    @Test
+    public void entities() throws IOException {
+        final Utf8XmlReader reader =
+                reader(
+                        STREAM_START
+                                + "<body a='&lt;&amp;&gt;&quot;&apos;' b=\"&#233;&#x1F600;\">"
+                                + "1 &lt; 2 &amp;&amp; &#x1f600;</body>");
+        reader.readTag();
+        final Tag body = reader.readTag();
+        assertEquals("<&>\"'", body.getAttribute("a"));
+        assertEquals("é😀", body.getAttribute("b"));
+        assertText(reader.readTag(), "1 < 2 && 😀");
+        assertEnd(reader.readTag(), "body");
+    }
+
+    @Test
+    public void multibyteCharactersSplitAcrossReads() throws IOException {
+        final String text = "grüße 😀 Привет 你好";
+        final byte[] bytes =
+                (STREAM_START + "<body title='" + text + "'>" + text + "</body>")
+                        .getBytes(StandardCharsets.UTF_8);
+        final Utf8XmlReader reader = new Utf8XmlReader();
+        reader.setInputStream(new TrickleInputStream(bytes));
+        reader.readTag();
+        final Tag body = reader.readTag();
+        assertEquals(text, body.getAttribute("title"));
+        assertText(reader.readTag(), text);
+        assertEnd(reader.readTag(), "body");
+    }
+
+    @Test
+    public void emptyElements() throws IOException {
+        final Utf8XmlReader reader = reader(STREAM_START + "<a/><b x='1' /><c></c>");
+        reader.readTag();
+        assertStart(reader.readTag(), "a", "jabber:client");
+        assertEnd(reader.readTag(), "a");
+        final Tag b = reader.readTag();
+        assertStart(b, "b", "jabber:client");
+        assertEquals("1", b.getAttribute("x"));
+        assertEnd(reader.readTag(), "b");
+        assertStart(reader.readTag(), "c", "jabber:client");
+        assertEnd(reader.readTag(), "c");
+    }
+
+    @Test
+    public void malformed() throws IOException {
+        expectFailure("<a></b>");
+        expectFailure("<x:a xmlns:x='urn:x'></y:a>");
+        expectFailure("<x:a xmlns:x='urn:x' xmlns:y='urn:x'></y:a>");
+        expectFailure("<a><b></a></b>");
+        expectFailure("</a>");
+        expectFailure("<a><!-- comment --></a>");
+        expectFailure("<a><![CDATA[x]]></a>");
+        expectFailure("<a><?pi?></a>");
+        expectFailure("<a>&nbsp;</a>");
+        expectFailure("<a>&#xZZ;</a>");
+        expectFailure("<a>&#x110000;</a>");
+        expectFailure("<a b='1></a>");
+        expectFailure("<a b=1></a>");
+        expectFailure("<a b></a>");
+        expectFailure("<a/ >");
+        expectFailure("<a><b>text");
+        expectFailure("<a");
+    }
+
+    private static void expectFailure(final String xml) throws IOException {
+        final Utf8XmlReader reader = reader(xml);
+        try {
+            while (reader.readTag() != null) {
+                // read until the error
+            }
+            fail("accepted " + xml);
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    private static Utf8XmlReader reader(final String xml) throws IOException {
+        final Utf8XmlReader reader = new Utf8XmlReader();
+        reader.setInputStream(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        return reader;
+    }
+
+    private static void assertStart(final Tag tag, final String name, final String namespace) {
+        assertTrue(tag + " is not <" + name + " xmlns='" + namespace + "'>", tag.isStart(name));
+        assertEquals(namespace, tag.getAttribute("xmlns"));
+    }
+
+    private static void assertEnd(final Tag tag, final String name) {
+        assertTrue(tag + " is not </" + name + ">", tag.isEnd(name));
+    }
+
+    private static void assertText(final Tag tag, final String text) {
+        assertTrue(tag + " is not text", tag.isNo());
+        assertEquals(text, tag.getName());
+    }
+
+    /** Hands out a single byte per read so that every character is split across reads. */
+    private static class TrickleInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        private TrickleInputStream(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (position == bytes.length) {
+                return -1;
+            }
+            b[off] = bytes[position++];
+            return 1;
+        }
+    }
+}